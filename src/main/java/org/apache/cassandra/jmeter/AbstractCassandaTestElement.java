@@ -16,10 +16,16 @@ package org.apache.cassandra.jmeter;
  */
 
 import com.datastax.driver.core.*;
-import org.apache.commons.collections.map.LRUMap;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import org.HdrHistogram.Recorder;
+import org.apache.cassandra.jmeter.config.CassandraConnection;
+import org.apache.cassandra.jmeter.config.CountingSpeculativeExecutionPolicy;
 import org.apache.jmeter.save.CSVSaveService;
 import org.apache.jmeter.testelement.AbstractTestElement;
 import org.apache.jmeter.testelement.TestStateListener;
+import org.apache.jmeter.testelement.ThreadListener;
 import org.apache.jmeter.threads.JMeterVariables;
 import org.apache.jmeter.util.JMeterUtils;
 import org.apache.jorphan.logging.LoggingManager;
@@ -32,15 +38,22 @@ import java.math.BigInteger;
 import java.net.InetAddress;
 import java.nio.ByteBuffer;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A base class for all Cassandra test elements handling the basics of a CQL request.
  *
  */
-public abstract class AbstractCassandaTestElement extends AbstractTestElement implements TestStateListener{
+public abstract class AbstractCassandaTestElement extends AbstractTestElement implements TestStateListener, ThreadListener {
     private static final long serialVersionUID = 235L;
 
     private static final Logger log = LoggingManager.getLoggerForClass();
@@ -57,6 +70,9 @@ public abstract class AbstractCassandaTestElement extends AbstractTestElement im
     private static final int MAX_OPEN_PREPARED_STATEMENTS =
             JMeterUtils.getPropDefault("cassandrasampler.maxopenpreparedstatements", 100);
 
+    private static final int MAX_BATCH_GROUPS =
+            JMeterUtils.getPropDefault("cassandrasampler.maxbatchgroups", 100);
+
     protected static final String ENCODING = "UTF-8"; // $NON-NLS-1$
 
     // Query types (used to communicate with GUI)
@@ -64,13 +80,30 @@ public abstract class AbstractCassandaTestElement extends AbstractTestElement im
     static final String SIMPLE   = "Simple Statement"; // $NON-NLS-1$
     static final String PREPARED = "Prepared Statement"; // $NON-NLS-1$
     static final String DYNAMIC_BATCH = "Dynamic Batch"; // $NON-NLS-1$
+    static final String COALESCED = "Coalesced Batch"; // $NON-NLS-1$
+    static final String ASYNC = "Asynchronous Prepared Statement"; // $NON-NLS-1$
+
+    // Dynamic batch grouping (used to communicate with GUI)
+    // N.B. These must not be changed, as they are used in the JMX files
+    static final String BATCH_UNGROUPED = "None"; // $NON-NLS-1$
+    static final String BATCH_BY_PARTITION = "Partition"; // $NON-NLS-1$
+    static final String BATCH_BY_REPLICAS = "Replica Set"; // $NON-NLS-1$
+
+    // Batch types, of dynamic batches and of the Cassandra Batch Coalescer (used to communicate with GUI)
+    // N.B. These must not be changed, as they are used in the JMX files
+    public static final String UNLOGGED = "Unlogged"; // $NON-NLS-1$
+    public static final String LOGGED = "Logged"; // $NON-NLS-1$
+    public static final String COUNTER = "Counter"; // $NON-NLS-1$
+
+    // Paging modes (used to communicate with GUI)
+    // N.B. These must not be changed, as they are used in the JMX files
+    static final String ALL_PAGES = "Drain all pages"; // $NON-NLS-1$
+    static final String FIRST_PAGE = "First page only"; // $NON-NLS-1$
+    static final String ROW_LIMIT = "First N rows"; // $NON-NLS-1$
 
     public static final String CASSANDRA_DATE_FORMAT_STRING1 = "yyyy-MM-dd HH:mm:ssZ";
     public static final String CASSANDRA_DATE_FORMAT_STRING2 = "yyyy-MM-dd HH:mm:ss";
     public static final String CASSANDRA_DATE_FORMAT_STRING3 = "yyyy-MM-dd";
-    public final SimpleDateFormat CassandraDateFormat1 = new SimpleDateFormat(CASSANDRA_DATE_FORMAT_STRING1);
-    public final SimpleDateFormat CassandraDateFormat2 = new SimpleDateFormat(CASSANDRA_DATE_FORMAT_STRING2);
-    public final SimpleDateFormat CassandraDateFormat3 = new SimpleDateFormat(CASSANDRA_DATE_FORMAT_STRING3);
 
     static final String ANY = "ANY";
     static final String ONE = "ONE";
@@ -89,18 +122,68 @@ public abstract class AbstractCassandaTestElement extends AbstractTestElement im
     private String consistencyLevel = ""; // $NON-NLS-1$
     private String query = ""; // $NON-NLS-1$
     private Integer batchSize = 1;
+    private Integer asyncWindow = 1;
+    private int fetchSize = 0;
+    private String pagingMode = ALL_PAGES;
+    private int rowLimit = Integer.MAX_VALUE;
+    private int prefetchThreshold = 0;
 
     private String resultVariable = ""; // $NON-NLS-1$
-    private transient final BatchStatement batchStatement = new BatchStatement(BatchStatement.Type.UNLOGGED);  // TODO - needs to be a map with stmt name
-    private int batchStatmentCount = 0;
+    private String batchGrouping = BATCH_UNGROUPED;
+    private long batchLinger = 0;
+    private String batchType = UNLOGGED;
+    private String batchCoalescer = "";
+    private String routingKeyTable = "";
+    private transient String routingKeyQuery;
+    private int batchBytes = 0;
+    private transient int batchedStatements;
+    private boolean idempotent = false;
+    private transient int speculativeExecutions;
+    private transient ExecutionInfo executionInfo;
+    private transient Recorder latencyRecorder;
+
+    // Dynamic batches being filled by this thread, by partition or replica set when grouping.
+    // In the order they were started.  Guarded by itself, as the linger timer takes expired batches.
+    private transient final Map<Object, PendingBatch> batches = new LinkedHashMap<Object, PendingBatch>();
+
+    // Asynchronous requests issued by this thread that have not been reported yet, and those of them that completed
+    private transient int asyncPending = 0;
+    private transient int discardedBytes = 0;
+    private transient final List<Page> pages = new ArrayList<Page>();
+    private transient boolean preparedStatementAwaited = false;
+    private transient final BlockingQueue<AsyncResult> asyncCompleted = new LinkedBlockingQueue<AsyncResult>();
+
+    // Preparation of the statement at test start.  Shared with the clones made for each thread - see clone()
+    private transient StartupPreparation startupPreparation;
+
+    // Elements between testStarted and testEnded, so the shared cache is only cleared once the last ends
+    private static final AtomicInteger startedElements = new AtomicInteger();
+
+    // Applies the batches that have lingered too long on threads that are not running this element.
+    // Shared by all elements, and only sends requests, so it never waits for one.
+    private static final ScheduledExecutorService lingerTimer =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "BatchLinger"); // $NON-NLS-1$
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    // This thread's check for lingering batches, once it has opened one
+    private transient ScheduledFuture<?> lingerCheck;
+
+    // Batches applied by the linger timer or at thread end, which no sample reports
+    private transient final AtomicInteger unreportedBatches = new AtomicInteger();
+    private transient final AtomicInteger unreportedStatements = new AtomicInteger();
 
     /**
-     *  Cache of PreparedStatements stored in a per-connection basis. Each entry of this
-     *  cache is another Map mapping the statement string to the actual PreparedStatement.
-     *  At one time a Connection is only held by one thread
+     *  Cache of PreparedStatements, and the binders for their arguments, for each
+     *  connection and statement string.  Shared by all threads, and limited to
+     *  MAX_OPEN_PREPARED_STATEMENTS for each connection.
      */
-    private static final Map<Session, Map<String, PreparedStatement>> perConnCache =
-            new ConcurrentHashMap<Session, Map<String, PreparedStatement>>();
+    private static final PreparedStatementCache perConnCache =
+            new PreparedStatementCache(MAX_OPEN_PREPARED_STATEMENTS);
 
     /**
      * Creates a CassandraSampler.
@@ -123,59 +206,568 @@ public abstract class AbstractCassandaTestElement extends AbstractTestElement im
         String _queryType = getQueryType();
         ResultSet rs = null;
         Statement stmt = null;
+        BatchCoalescer coalescer = null;
+        batchedStatements = 0;
+        speculativeExecutions = 0;
+        executionInfo = null;
         if (SIMPLE.equals(_queryType)) {
-
-            // TODO - set page size
-
-            SimpleStatement sstmt = new SimpleStatement(getQuery());
+            SimpleStatement sstmt = newSimpleStatement(conn);
             sstmt.setConsistencyLevel(getConsistencyLevelCL());
             stmt = sstmt;
 
         } else if (PREPARED.equals(_queryType) || DYNAMIC_BATCH.equals(_queryType)) {
-            BoundStatement pstmt = getPreparedStatement(conn);
-            setArguments(pstmt);
+            BoundStatement pstmt = bindPreparedStatement(conn);
             pstmt.setConsistencyLevel(getConsistencyLevelCL()) ;
             stmt = pstmt;
             if (DYNAMIC_BATCH.equals(_queryType)) {
-                BatchStatement batchStatement = this.batchStatement;  // TODO - replace this.batchstatement with a cache
-                batchStatement.add(pstmt);
-                if (++batchStatmentCount < batchSize)
-                    return null;
+                List<BatchStatement> ready;
+                synchronized (batches) {
+                    ready = addToBatch(conn, pstmt);
+                    if (ready.isEmpty()) {
+                        BatchStatement expired = takeExpiredBatch();
+                        if (expired != null)
+                            ready.add(expired);
+                    }
+                }
                 // Not too oo, but bail if we don't need to execute the batch
-                stmt = batchStatement;
+                if (ready.isEmpty())
+                    return null;
+                for (BatchStatement batch : ready) {
+                    batchedStatements += batch.size();
+                }
+                // Any batch but the last is applied here, and the last below, so the sample reports them all
+                for (BatchStatement batch : ready.subList(0, ready.size() - 1)) {
+                    applyBatch(conn, batch);
+                }
+                stmt = ready.get(ready.size() - 1);
             }
+        } else if (COALESCED.equals(_queryType)) {
+            coalescer = BatchCoalescer.getCoalescer(batchCoalescer);
+            if (coalescer == null) {
+                throw new IllegalArgumentException("No Cassandra Batch Coalescer named " + batchCoalescer + " in " + getName());
+            }
+            stmt = bindPreparedStatement(conn);
+        } else if (ASYNC.equals(_queryType)) {
+            throw new UnsupportedOperationException(ASYNC + " is only supported by the Cassandra Sampler");
         } else { // User provided incorrect query type
             throw new UnsupportedOperationException("Unexpected query type: " + _queryType);
         }
-        batchStatmentCount = 0;
         // TODO - clean up setConsistencyLevel everywhere
         // TODO - This is the one that will always work
         stmt.setConsistencyLevel(getConsistencyLevelCL());
-        rs = conn.execute(stmt);
-        batchStatement.clear();   // You've got to be kidding!
-        return getStringFromResultSet(rs).getBytes(ENCODING);
+        if (idempotent) {
+            stmt.setIdempotent(true);
+        }
+        if (fetchSize > 0) {
+            stmt.setFetchSize(fetchSize);
+        }
+        if (shouldTrace() && coalescer == null) {
+            stmt.enableTracing();
+        }
+        pages.clear();
+        CountingSpeculativeExecutionPolicy.Executions executions = null;
+        long start = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
+        try {
+            if (coalescer != null) {
+                // Completes when the batch holding the statement is applied
+                rs = coalescer.execute(conn, (BoundStatement) stmt);
+            } else {
+                executions = CountingSpeculativeExecutionPolicy.countNextExecutions();
+                rs = conn.execute(stmt);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for batch in " + getName(), e);
+        } finally {
+            recordLatency(getLatencyRecorder(), System.nanoTime() - startNanos);
+        }
+        executionInfo = rs.getExecutionInfo();
+        speculativeExecutions = executions == null ? 0 : executions.getSpeculativeExecutions();
+        pages.add(new Page(start, System.currentTimeMillis(), rs.getAvailableWithoutFetching()));
+        return getResultSetBytes(rs);
+    }
+
+    /**
+     * @return how the last call to {@link #execute(Session)} was executed - the coordinator, the hosts
+     * tried and the consistency achieved - or <code>null</code> if it didn't execute anything
+     */
+    protected ExecutionInfo getExecutionInfo() {
+        return executionInfo;
+    }
+
+    /**
+     * @return the number of speculative executions started by the last call to {@link #execute(Session)}
+     */
+    protected int getSpeculativeExecutions() {
+        return speculativeExecutions;
     }
 
-    private static byte[] hexStringToByteArray(String s) throws ParseException {
+    /**
+     * @return the number of statements this thread applied in batches that no sample reports - those
+     * applied by the linger timer or when the thread finished
+     */
+    int getUnreportedStatements() {
+        return unreportedStatements.get();
+    }
+
+    /**
+     * @return the number of statements in the batch applied by the last call to {@link #execute(Session)},
+     * or 0 if it applied no batch
+     */
+    protected int getBatchedStatements() {
+        return batchedStatements;
+    }
+
+    /**
+     * Add the statement to the dynamic batch for its group.  A batch is ready when it holds batchSize
+     * statements or batchBytes of values.  If there are too many groups, the largest batch is sent early.
+     *
+     * @return the batches that are ready to be executed, oldest first.  Usually none or one, but two when
+     * the statement didn't fit in the batch of its group, and reaches a threshold in a batch of its own.
+     */
+    private List<BatchStatement> addToBatch(Session conn, BoundStatement pstmt) {
+        List<BatchStatement> ready = new ArrayList<BatchStatement>(2);
+        Object group = batchGroup(conn, pstmt);
+        int bytes = valueBytes(pstmt);
+        PendingBatch batch = batches.get(group);
+        if (batch != null && batchBytes > 0 && batch.bytes + bytes > batchBytes) {
+            // Adding the statement would take the batch over the limit, so apply it without
+            ready.add(batches.remove(group).statement);
+            batch = null;
+        }
+        if (batch == null) {
+            batch = new PendingBatch(new BatchStatement(batchTypeOf(batchType)));
+            batches.put(group, batch);
+            if (lingerCheck == null && batchLinger > 0) {
+                scheduleLingerCheck(conn);
+            }
+        }
+        batch.statement.add(pstmt);
+        batch.bytes += bytes;
+        if (batch.statement.size() >= batchSize || (batchBytes > 0 && batch.bytes >= batchBytes)) {
+            ready.add(batches.remove(group).statement);
+        } else if (ready.isEmpty() && batches.size() > MAX_BATCH_GROUPS) {
+            Object largest = null;
+            int largestSize = 0;
+            for (Map.Entry<Object, PendingBatch> entry : batches.entrySet()) {
+                if (entry.getValue().statement.size() > largestSize) {
+                    largest = entry.getKey();
+                    largestSize = entry.getValue().statement.size();
+                }
+            }
+            ready.add(batches.remove(largest).statement);
+        }
+        return ready;
+    }
+
+    /**
+     * Apply a batch that the sample doesn't execute itself: one ahead of the sample's own, when adding a
+     * statement makes two ready at once, or one still open when the thread finishes
+     */
+    private void applyBatch(Session conn, BatchStatement batch) {
+        batch.setConsistencyLevel(getConsistencyLevelCL());
+        if (idempotent) {
+            batch.setIdempotent(true);
+        }
+        long startNanos = System.nanoTime();
+        try {
+            conn.execute(batch);
+        } finally {
+            recordLatency(getLatencyRecorder(), System.nanoTime() - startNanos);
+        }
+    }
+
+    /**
+     * Check for lingering batches every half of batchLinger, so that a batch is applied at most half as
+     * long again after it expires, even if this thread doesn't run the element again
+     */
+    private void scheduleLingerCheck(final Session conn) {
+        long period = Math.max(1, batchLinger / 2);
+        // The session and recorder are found through this thread
+        final Recorder recorder = getLatencyRecorder();
+        lingerCheck = lingerTimer.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                applyExpiredBatches(conn, recorder);
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Send the batches that have been open longer than batchLinger, without waiting for them
+     */
+    private void applyExpiredBatches(Session conn, final Recorder recorder) {
+        List<BatchStatement> expired = new ArrayList<BatchStatement>();
+        synchronized (batches) {
+            BatchStatement batch;
+            while ((batch = takeExpiredBatch()) != null) {
+                expired.add(batch);
+            }
+        }
+        if (expired.isEmpty()) {
+            return;
+        }
+        for (final BatchStatement batch : expired) {
+            unreportedBatches.incrementAndGet();
+            unreportedStatements.addAndGet(batch.size());
+            batch.setConsistencyLevel(getConsistencyLevelCL());
+            if (idempotent) {
+                batch.setIdempotent(true);
+            }
+            final long startNanos = System.nanoTime();
+            Futures.addCallback(conn.executeAsync(batch), new FutureCallback<ResultSet>() {
+                public void onSuccess(ResultSet rs) {
+                    recordLatency(recorder, System.nanoTime() - startNanos);
+                }
+
+                public void onFailure(Throwable t) {
+                    recordLatency(recorder, System.nanoTime() - startNanos);
+                    log.warn("Could not apply lingering batch of " + batch.size() + " statements in " + getName() + ": " + t);
+                }
+            });
+        }
+        log.debug("Applied " + expired.size() + " lingering batches in " + getName());
+    }
+
+    /**
+     * @return the oldest batch if it has been open longer than batchLinger, or <code>null</code>
+     */
+    private BatchStatement takeExpiredBatch() {
+        if (batchLinger <= 0 || batches.isEmpty()) {
+            return null;
+        }
+        Iterator<PendingBatch> oldest = batches.values().iterator();
+        PendingBatch batch = oldest.next();
+        if (System.currentTimeMillis() - batch.started < batchLinger) {
+            return null;
+        }
+        oldest.remove();
+        return batch.statement;
+    }
+
+    /**
+     * Apply any dynamic batches this thread has not sent yet
+     */
+    private void flushBatches() {
+        if (lingerCheck != null) {
+            lingerCheck.cancel(false);
+            lingerCheck = null;
+        }
+        List<BatchStatement> open = new ArrayList<BatchStatement>();
+        synchronized (batches) {
+            for (PendingBatch batch : batches.values()) {
+                open.add(batch.statement);
+            }
+            batches.clear();
+        }
+        if (open.isEmpty()) {
+            return;
+        }
+        // Outside the lock, so the linger timer isn't held up by the round trips
+        Session conn = CassandraConnection.getSession(getSessionName());
+        int statements = 0;
+        int failed = 0;
+        for (BatchStatement batch : open) {
+            statements += batch.size();
+            unreportedBatches.incrementAndGet();
+            unreportedStatements.addAndGet(batch.size());
+            try {
+                applyBatch(conn, batch);
+            } catch (RuntimeException e) {
+                failed++;
+                log.warn("Could not apply batch of " + batch.size() + " statements in " + getName() + ": " + e);
+            }
+        }
+        log.debug("Applied " + open.size() + " open batches of " + statements + " statements in " + getName()
+                + (failed > 0 ? ", " + failed + " failed" : ""));
+    }
+
+    /**
+     * @return the serialized size of the values bound to the statement, which is most of what
+     * the server counts against its batch size thresholds
+     */
+    static int valueBytes(BoundStatement pstmt) {
+        int bytes = 0;
+        for (int i = 0; i < pstmt.preparedStatement().getVariables().size(); i++) {
+            ByteBuffer value = pstmt.getBytesUnsafe(i);
+            if (value != null) {
+                bytes += value.remaining();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the type of batch for one of the batch types offered by the GUI, Unlogged by default
+     */
+    public static BatchStatement.Type batchTypeOf(String batchType) {
+        if (LOGGED.equals(batchType)) {
+            return BatchStatement.Type.LOGGED;
+        }
+        if (COUNTER.equals(batchType)) {
+            return BatchStatement.Type.COUNTER;
+        }
+        return BatchStatement.Type.UNLOGGED;
+    }
+
+    private static final class PendingBatch {
+        private final BatchStatement statement;
+        private final long started = System.currentTimeMillis();
+        private int bytes;
+
+        PendingBatch(BatchStatement statement) {
+            this.statement = statement;
+        }
+    }
+
+    private static final Object UNGROUPED = new Object();
+
+    /**
+     * @return the key of the batch the statement belongs in
+     */
+    private Object batchGroup(Session conn, BoundStatement pstmt) {
+        // Plans saved before grouping existed have a blank grouping, and must keep a single batch
+        if (!BATCH_BY_PARTITION.equals(batchGrouping) && !BATCH_BY_REPLICAS.equals(batchGrouping)) {
+            return UNGROUPED;
+        }
+        ByteBuffer routingKey = pstmt.getRoutingKey();
+        if (routingKey == null) {
+            return UNGROUPED; // Not all of the partition key is bound
+        }
+        if (BATCH_BY_REPLICAS.equals(batchGrouping) && pstmt.getKeyspace() != null) {
+            return conn.getCluster().getMetadata().getReplicas(Metadata.quote(pstmt.getKeyspace()), routingKey);
+        }
+        return routingKey.duplicate();
+    }
+
+    /**
+     * Issue the statement with executeAsync, keeping at most asyncWindow requests
+     * in flight for this thread.  Only blocks when the window is full.
+     *
+     * @param conn the session to execute on
+     * @return the requests that completed since the previous call - may be empty while the window fills
+     */
+    protected List<AsyncResult> executeAsync(Session conn) throws IOException, InterruptedException {
+        return executeAsync(conn, System.currentTimeMillis());
+    }
+
+    /**
+     * As {@link #executeAsync(Session)}, but the latency of the request is measured from
+     * intendedStart, which may be earlier than the time the request is actually sent.
+     *
+     * @param conn the session to execute on
+     * @param intendedStart the time in milliseconds the request should have been sent
+     * @return the requests that completed since the previous call - may be empty while the window fills
+     */
+    protected List<AsyncResult> executeAsync(Session conn, final long intendedStart) throws IOException, InterruptedException {
+        String _queryType = getQueryType();
+        Statement stmt;
+        if (SIMPLE.equals(_queryType)) {
+            stmt = newSimpleStatement(conn);
+        } else if (PREPARED.equals(_queryType) || ASYNC.equals(_queryType)) {
+            BoundStatement pstmt = bindPreparedStatement(conn);
+            stmt = pstmt;
+        } else {
+            throw new UnsupportedOperationException("Unexpected query type for asynchronous execution: " + _queryType);
+        }
+        stmt.setConsistencyLevel(getConsistencyLevelCL());
+        if (idempotent) {
+            stmt.setIdempotent(true);
+        }
+        if (fetchSize > 0) {
+            stmt.setFetchSize(fetchSize);
+        }
+        pages.clear();  // Pages are only timed for synchronous execution
+
+        // Measured from the intended start, but with the resolution of nanoTime
+        final Recorder recorder = getLatencyRecorder();
+        final long startNanos = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - intendedStart);
+        final CountingSpeculativeExecutionPolicy.Executions executions = CountingSpeculativeExecutionPolicy.countNextExecutions();
+        ResultSetFuture future = conn.executeAsync(stmt);
+        asyncPending++;
+        Futures.addCallback(future, new FutureCallback<ResultSet>() {
+            public void onSuccess(ResultSet rs) {
+                recordLatency(recorder, System.nanoTime() - startNanos);
+                asyncCompleted.add(new AsyncResult(intendedStart, System.currentTimeMillis(), rs, null,
+                        executions.getSpeculativeExecutions()));
+            }
+
+            public void onFailure(Throwable t) {
+                recordLatency(recorder, System.nanoTime() - startNanos);
+                asyncCompleted.add(new AsyncResult(intendedStart, System.currentTimeMillis(), null, t,
+                        executions.getSpeculativeExecutions()));
+            }
+        });
+
+        List<AsyncResult> completed = new ArrayList<AsyncResult>();
+        if (asyncPending >= asyncWindow) {
+            completed.add(asyncCompleted.take());
+        }
+        asyncCompleted.drainTo(completed);
+        asyncPending -= completed.size();
+        return completed;
+    }
+
+    /**
+     * Wait for any asynchronous requests still in flight.  Their results are discarded.
+     *
+     * @return the number of requests that were waited for
+     */
+    protected int awaitAsync() throws InterruptedException {
+        int outstanding = asyncPending;
+        while (asyncPending > 0) {
+            asyncCompleted.take();
+            asyncPending--;
+        }
+        return outstanding;
+    }
+
+    /**
+     * @return this thread's recorder for the latency of each execution, or <code>null</code> if no
+     * Cassandra Latency Recorder is running
+     */
+    private Recorder getLatencyRecorder() {
+        if (latencyRecorder == null) {
+            latencyRecorder = LatencyRecorder.getRecorder(getName());
+        }
+        return latencyRecorder;
+    }
+
+    private static void recordLatency(Recorder recorder, long nanos) {
+        if (recorder != null) {
+            recorder.recordValue(Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos)));
+        }
+    }
+
+    /**
+     * @return whether to trace the next statement executed synchronously
+     */
+    protected boolean shouldTrace() {
+        return false;
+    }
+
+    protected boolean isAsync() {
+        return ASYNC.equals(getQueryType());
+    }
+
+    protected boolean isDynamicBatch() {
+        return DYNAMIC_BATCH.equals(getQueryType());
+    }
+
+    /**
+     * Outcome of a single request issued by {@link #executeAsync(Session)}
+     */
+    protected static final class AsyncResult {
+        private final long startTime;
+        private final long endTime;
+        private final ResultSet resultSet;
+        private final Throwable error;
+        private final int speculativeExecutions;
+
+        AsyncResult(long startTime, long endTime, ResultSet resultSet, Throwable error, int speculativeExecutions) {
+            this.startTime = startTime;
+            this.endTime = endTime;
+            this.resultSet = resultSet;
+            this.error = error;
+            this.speculativeExecutions = speculativeExecutions;
+        }
+
+        public long getStartTime() {
+            return startTime;
+        }
+
+        public long getEndTime() {
+            return endTime;
+        }
+
+        /**
+         * @return the result set, or <code>null</code> if the request failed
+         */
+        public ResultSet getResultSet() {
+            return resultSet;
+        }
+
+        /**
+         * @return the failure, or <code>null</code> if the request succeeded
+         */
+        public Throwable getError() {
+            return error;
+        }
+
+        public int getSpeculativeExecutions() {
+            return speculativeExecutions;
+        }
+    }
+
+    /**
+     * Time taken to prepare the statement when the test started
+     */
+    protected static final class StartupPreparation {
+        private final long startTime = System.currentTimeMillis();
+        private volatile long endTime;
+        private volatile Throwable error;
+        private final AtomicBoolean reported = new AtomicBoolean();
+
+        private void completed(Throwable error) {
+            this.error = error;
+            this.endTime = System.currentTimeMillis();
+        }
+
+        public long getStartTime() {
+            return startTime;
+        }
 
-        if (! s.startsWith("0x")) {
-            throw new ParseException("blob must start with 0x", 0);
+        /**
+         * @return when preparation completed, or 0 if it hasn't yet
+         */
+        public long getEndTime() {
+            return endTime;
         }
-        int len = s.length() -2 ;
-        byte[] data = new byte[len / 2];
-        for (int i = 0; i < len; i += 2) {
-            data[i / 2] = (byte) ((charToHexDigit(s.charAt(i + 2)) << 4)
-                    + charToHexDigit(s.charAt(i + 3)));
+
+        /**
+         * @return why the statement could not be prepared, or <code>null</code> if it was
+         */
+        public Throwable getError() {
+            return error;
         }
-        return data;
     }
 
-    private static int charToHexDigit(char ch) throws ParseException {
-        int digit = Character.digit(ch,16);
-        if (digit == -1 ) {
-            throw new ParseException("\"" + ch + "\" is an invalid character", 0);
+    /**
+     * Timing of a page of results fetched by {@link #execute(Session)}
+     */
+    protected static final class Page {
+        private final long startTime;
+        private final long endTime;
+        private final int rows;
+
+        Page(long startTime, long endTime, int rows) {
+            this.startTime = startTime;
+            this.endTime = endTime;
+            this.rows = rows;
+        }
+
+        public long getStartTime() {
+            return startTime;
+        }
+
+        public long getEndTime() {
+            return endTime;
         }
-        return digit;
+
+        /**
+         * @return the number of rows fetched with the page
+         */
+        public int getRows() {
+            return rows;
+        }
+    }
+
+    /**
+     * @return the pages fetched by the last call to {@link #execute(Session)}, starting with the
+     * response to the query itself
+     */
+    protected List<Page> getPages() {
+        return pages;
     }
 
     final protected static char[] hexArray = "0123456789abcdef".toCharArray();
@@ -192,125 +784,176 @@ public abstract class AbstractCassandaTestElement extends AbstractTestElement im
         return "0x" + new String(hexChars);
     }
 
-    private void setArguments(BoundStatement pstmt) throws IOException {
+    /**
+     * @return the query as a simple statement, with the Parameter Values as its routing key when a
+     * Routing Key Table is given, so that a token aware policy can send it to a replica
+     */
+    SimpleStatement newSimpleStatement(Session conn) throws IOException {
+        SimpleStatement sstmt = new SimpleStatement(getQuery());
+        if (routingKeyTable.trim().length() == 0 || getQueryArguments().trim().length() == 0) {
+            return sstmt;
+        }
+        if (routingKeyQuery == null) {
+            routingKeyQuery = buildRoutingKeyQuery(conn);
+        }
+        // Bind the values to a query on the partition key, and let the driver compose the key
+        PreparedQuery pq = perConnCache.get(conn, routingKeyQuery);
+        BoundStatement key = pq.getStatement().bind();
+        setArguments(key, pq.getBinders());
+        sstmt.setRoutingKey(key.getRoutingKey());
+        sstmt.setKeyspace(key.getKeyspace());
+        return sstmt;
+    }
+
+    private String buildRoutingKeyQuery(Session conn) {
+        String table = routingKeyTable.trim();
+        String keyspace = conn.getLoggedKeyspace();
+        int dot = table.indexOf('.');
+        if (dot >= 0) {
+            keyspace = table.substring(0, dot);
+            table = table.substring(dot + 1);
+        }
+        KeyspaceMetadata ksm = keyspace == null ? null : conn.getCluster().getMetadata().getKeyspace(keyspace);
+        TableMetadata tm = ksm == null ? null : ksm.getTable(table);
+        if (tm == null) {
+            throw new IllegalArgumentException("Unknown Routing Key Table " + routingKeyTable + " in " + getName());
+        }
+        StringBuilder sb = new StringBuilder("SELECT * FROM ") // $NON-NLS-1$
+                .append(Metadata.quote(ksm.getName())).append('.').append(Metadata.quote(tm.getName()))
+                .append(" WHERE "); // $NON-NLS-1$
+        List<ColumnMetadata> partitionKey = tm.getPartitionKey();
+        for (int i = 0; i < partitionKey.size(); i++) {
+            if (i > 0) {
+                sb.append(" AND "); // $NON-NLS-1$
+            }
+            sb.append(Metadata.quote(partitionKey.get(i).getName())).append(" = ?"); // $NON-NLS-1$
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Get the prepared statement for the query and bind the query arguments to it
+     */
+    private BoundStatement bindPreparedStatement(Session conn) throws IOException {
+        PreparedQuery pq = getPreparedStatement(conn);
+        BoundStatement pstmt = pq.getStatement().bind();
+        setArguments(pstmt, pq.getBinders());
+        return pstmt;
+    }
+
+    private void setArguments(BoundStatement pstmt, ArgumentBinder[] binders) throws IOException {
         if (getQueryArguments().trim().length()==0) {
             return;
         }
 
-        ColumnDefinitions colDefs = pstmt.preparedStatement().getVariables();
-
         String[] arguments = CSVSaveService.csvSplitString(getQueryArguments(), COMMA_CHAR);
-        if (arguments.length !=colDefs.size()) {
+        if (arguments.length != binders.length) {
             // TODO - throw a non-transient exception here!
-            throw new RuntimeException("number of arguments ("+arguments.length+") and number in stmt (" + colDefs.size() + ") are not equal");
+            throw new RuntimeException("number of arguments ("+arguments.length+") and number in stmt (" + binders.length + ") are not equal");
         }
 
-
         for (int i = 0; i < arguments.length; i++) {
-            String argument = arguments[i];
-
-            DataType tp = colDefs.getType(i);
-            Class<?> javaType = tp.asJavaClass();
             try {
-                if (javaType == Integer.class)
-                    pstmt.setInt(i, Integer.parseInt(argument));
-                else if (javaType == Boolean.class)
-                    pstmt.setBool(i, Boolean.parseBoolean(argument));
-                else if (javaType == ByteBuffer.class)
-                    pstmt.setBytes(i, ByteBuffer.wrap(hexStringToByteArray(argument)));
-                else if (javaType == Date.class) {
-                    if (argument.length() == (CASSANDRA_DATE_FORMAT_STRING1 + "+ZZZ").length())
-                        pstmt.setDate(i, CassandraDateFormat1.parse(argument));
-                    else if (argument.length() == CASSANDRA_DATE_FORMAT_STRING2.length())
-                        pstmt.setDate(i, CassandraDateFormat2.parse(argument));
-                    else if (argument.length() == CASSANDRA_DATE_FORMAT_STRING3.length())
-                        pstmt.setDate(i, CassandraDateFormat3.parse(argument));
-                    }
-
-                else if (javaType == BigDecimal.class)
-                        pstmt.setDecimal(i, new BigDecimal(argument));
-                else if (javaType == Double.class)
-                        pstmt.setDouble(i, Double.parseDouble(argument));
-                else if (javaType == Float.class)
-                    pstmt.setFloat(i, Float.parseFloat(argument));
-                else if (javaType == InetAddress.class)  {
-                    int start = argument.startsWith("/") ? 1 : 0;    // strip off leading /
-                        pstmt.setInet(i, InetAddress.getByName(argument.substring(start)));
-                }
-                else if (javaType == Long.class)
-                    pstmt.setLong(i, Long.parseLong(argument));
-                else if (javaType == String.class)
-                    pstmt.setString(i, argument);
-                else if (javaType == UUID.class)
-                    pstmt.setUUID(i, UUID.fromString(argument));
-                else if (javaType == BigInteger.class)
-                    pstmt.setVarint(i, new BigInteger(argument));
-                    else if (javaType == TupleValue.class) {
-                    TupleValue tup = (TupleValue) tp.parse(argument);
-                    pstmt.setTupleValue(i, tup);
-                } else if (javaType == UDTValue.class) {
-                    UDTValue udt = (UDTValue) tp.parse(argument);
-                    pstmt.setUDTValue(i, udt);
-                    } else if (javaType.isAssignableFrom(Set.class)) {
-                    Set<?> theSet = (Set<?>) tp.parse(argument);
-                    pstmt.setSet(i,theSet);
-                } else if (javaType.isAssignableFrom(List.class)) {
-                    List<?> theList = (List<?>) tp.parse(argument);
-                    pstmt.setList(i,theList);
-                } else if (javaType.isAssignableFrom(Map.class)) {
-                    Map<?,?> theMap = (Map<?,?>) tp.parse(argument);
-                    pstmt.setMap(i,theMap);
-                }
-                else
-                    throw new RuntimeException("Unsupported Type: " + javaType);
-
+                binders[i].bind(pstmt, i, arguments[i]);
             } catch (ParseException e) {
-                throw new RuntimeException("Could not Convert Argument #" + i + " \"" + argument + "\" to type" + javaType) ;
+                throw new RuntimeException("Could not Convert Argument #" + i + " \"" + arguments[i] + "\" to type" + binders[i].getJavaType()) ;
             } catch (NullPointerException e) {
                 throw new RuntimeException("Could not set argument no: "+(i+1)+" - missing parameter marker?");
             }
         }
     }
 
-    private BoundStatement getPreparedStatement(Session conn) {
+    private PreparedQuery getPreparedStatement(Session conn) {
         return getPreparedStatement(conn,false);
     }
 
-    // TODO - How thread safe is this - conn gets shared for everyone.
-    private BoundStatement getPreparedStatement(Session conn, boolean callable) {
-        Map<String, PreparedStatement> preparedStatementMap = perConnCache.get(conn);
-        if (null == preparedStatementMap ) {
-            @SuppressWarnings("unchecked") // LRUMap is not generic
-                    Map<String, PreparedStatement> lruMap = new LRUMap(MAX_OPEN_PREPARED_STATEMENTS) {
-                private static final long serialVersionUID = 1L;
-                @Override
-                protected boolean removeLRU(LinkEntry entry) {
-                    PreparedStatement preparedStatement = (PreparedStatement)entry.getValue();
-                    return true;
-                }
-            };
+    private PreparedQuery getPreparedStatement(Session conn, boolean callable) {
+        return perConnCache.get(conn, getQuery());
+    }
 
-            // TODO - This is wrong, but is synchronized
-            preparedStatementMap = Collections.<String, PreparedStatement>synchronizedMap(lruMap);
-            // As a connection is held by only one thread, we cannot already have a 
-            // preparedStatementMap put by another thread
-            perConnCache.put(conn, preparedStatementMap);
+    private boolean usesPreparedStatement(String _queryType) {
+        return PREPARED.equals(_queryType) || DYNAMIC_BATCH.equals(_queryType) || COALESCED.equals(_queryType)
+                || ASYNC.equals(_queryType);
+    }
+
+    /**
+     * Start preparing the statement when the test starts, so that the first samples don't include
+     * the time taken.  The statements of all elements are prepared in parallel.  The connection must
+     * come before this element in the test plan, and queries using variables are prepared when first run.
+     */
+    private void prepareAtTestStart() {
+        final String _query = getPropertyAsString("query"); // $NON-NLS-1$
+        if (!usesPreparedStatement(getPropertyAsString("queryType")) // $NON-NLS-1$
+                || _query.trim().length() == 0 || _query.contains("${")) { // $NON-NLS-1$
+            return;
         }
-        PreparedStatement pstmt = preparedStatementMap.get(getQuery());
-        if (null == pstmt) {
-            pstmt = conn.prepare(getQuery());
+        Session conn = CassandraConnection.getSession(getPropertyAsString("sessionName")); // $NON-NLS-1$
+        if (conn == null) {
+            log.debug("No session yet - " + getName() + " will prepare its statement when first run");
+            return;
+        }
+
+        final StartupPreparation preparation = new StartupPreparation();
+        startupPreparation = preparation;
+        Futures.addCallback(perConnCache.prepareAsync(conn, _query), new FutureCallback<PreparedQuery>() {
+            public void onSuccess(PreparedQuery pq) {
+                preparation.completed(null);
+                log.debug("Prepared statement for " + getName() + " at test start in "
+                        + (preparation.getEndTime() - preparation.getStartTime()) + " ms");
+            }
+
+            public void onFailure(Throwable t) {
+                preparation.completed(t);
+                log.warn("Could not prepare statement for " + getName() + " at test start: " + t);
+            }
+        });
+    }
 
-            // PreparedStatementMap is associated to one connection so
-            //  2 threads cannot use the same PreparedStatement map at the same time
-            preparedStatementMap.put(getQuery(), pstmt);
+    /**
+     * @return the preparation of the statement at test start, if it has completed and has not been
+     * taken yet by any thread, otherwise <code>null</code>.  So it is reported once per test.
+     */
+    protected StartupPreparation takeStartupPreparation() {
+        StartupPreparation preparation = startupPreparation;
+        if (preparation == null || preparation.getEndTime() == 0 || !preparation.reported.compareAndSet(false, true)) {
+            return null;
         }
+        return preparation;
+    }
 
-        return pstmt.bind();
+    @Override
+    public Object clone() {
+        AbstractCassandaTestElement clone = (AbstractCassandaTestElement) super.clone();
+        clone.startupPreparation = startupPreparation;
+        return clone;
+    }
+
+    /**
+     * On the first call in each thread, wait for the statement to be prepared, so that the time
+     * taken is not included in a sample.
+     */
+    protected void awaitPreparedStatement() {
+        if (preparedStatementAwaited) {
+            return;
+        }
+        preparedStatementAwaited = true;
+        if (!usesPreparedStatement(getQueryType())) {
+            return;
+        }
+        Session conn = CassandraConnection.getSession(getSessionName());
+        if (conn == null) {
+            return;
+        }
+        try {
+            getPreparedStatement(conn);
+        } catch (RuntimeException e) {
+            // Reported when the statement is run
+        }
     }
 
     private String stringOf(Object o) {
        if (o.getClass() == Date.class)
-           return CassandraDateFormat1.format(o);
+           return TimestampCodec.format(((Date) o).getTime());
        else if (ByteBuffer.class.isAssignableFrom(o.getClass()))
            return bytesToHex((ByteBuffer) o);
        else
@@ -375,7 +1018,7 @@ public abstract class AbstractCassandaTestElement extends AbstractTestElement im
         if (javaType == ByteBuffer.class)
             return row.getBytes(index);
         if (javaType == Date.class)
-            return CassandraDateFormat1.format(row.getDate(index));
+            return TimestampCodec.format(row.getDate(index).getTime());
         if (javaType == BigDecimal.class)
             return row.getDecimal(index);
         if (javaType == Double.class)
@@ -414,10 +1057,13 @@ public abstract class AbstractCassandaTestElement extends AbstractTestElement im
 
         ColumnDefinitions meta = rs.getColumnDefinitions();
 
-        StringBuilder sb = new StringBuilder();
+        // When discarding, the rows are only counted - values are only converted to fill variables
+        boolean discard = isDiscardResponse();
+        discardedBytes = 0;
+        StringBuilder sb = discard ? null : new StringBuilder();
 
         int numColumns = rs.getColumnDefinitions().size();
-        for (int i = 0; i < numColumns; i++) {
+        for (int i = 0; sb != null && i < numColumns; i++) {
             sb.append(meta.getName(i));
             if (i==numColumns - 1){
                 sb.append('\n');
@@ -435,12 +1081,46 @@ public abstract class AbstractCassandaTestElement extends AbstractTestElement im
             jmvars.putObject(resultVariable, results);
         }
 
+        // Read rows until the paging mode says stop, timing each page the driver has to fetch.
+        // If the page was prefetched, only the time spent waiting for it is seen.
+        boolean firstPageOnly = FIRST_PAGE.equals(getPagingMode());
+        int limit = ROW_LIMIT.equals(getPagingMode()) ? rowLimit : Integer.MAX_VALUE;
         int j = 0;
-        for (Row crow : rs) {
+        while (j < limit) {
+            boolean fetch = rs.getAvailableWithoutFetching() == 0 && !rs.isFullyFetched();
+            if (fetch && firstPageOnly) {
+                break;
+            }
+            long start = fetch ? System.currentTimeMillis() : 0;
+            Row crow = rs.one();
+            if (fetch) {
+                pages.add(new Page(start, System.currentTimeMillis(), rs.getAvailableWithoutFetching() + (crow == null ? 0 : 1)));
+            }
+            if (crow == null) {
+                break;
+            }
+            // Fetch the next page in the background while this one is read
+            if (prefetchThreshold > 0 && !firstPageOnly && !rs.isFullyFetched()) {
+                int available = rs.getAvailableWithoutFetching();
+                if (available < prefetchThreshold && j + 1 + available < limit) {
+                    rs.fetchMoreResults();
+                }
+            }
             Map<String, Object> row = null;
             j++;
             for (int i = 0; i < numColumns; i++) {
 
+                String name = i < varnames.length ? varnames[i].trim() : ""; // i starts at 0
+                if (discard) {
+                    ByteBuffer raw = crow.getBytesUnsafe(i);
+                    if (raw != null) {
+                        discardedBytes += raw.remaining();
+                    }
+                    if (results == null && name.length() == 0) {
+                        continue;
+                    }
+                }
+
                 Object o = getObject(crow,i) ;
 
                 if (rs.getColumnDefinitions().getType(i).asJavaClass() == ByteBuffer.class) {
@@ -455,18 +1135,17 @@ public abstract class AbstractCassandaTestElement extends AbstractTestElement im
                     row.put(rs.getColumnDefinitions().getName(i), o);
                 }
 
-                sb.append(o);
-                if (i==numColumns -1){
-                    sb.append('\n');
-                } else {
-                    sb.append('\t');
-                }
-                if (i < varnames.length) { // i starts at 0
-                    String name = varnames[i].trim();
-                    if (name.length()>0){ // Save the value in the variable if present
-                        jmvars.put(name+UNDERSCORE+j, o == null ? null : o.toString());
+                if (sb != null) {
+                    sb.append(o);
+                    if (i==numColumns -1){
+                        sb.append('\n');
+                    } else {
+                        sb.append('\t');
                     }
                 }
+                if (name.length()>0){ // Save the value in the variable if present
+                    jmvars.put(name+UNDERSCORE+j, o == null ? null : o.toString());
+                }
             }
         }
 
@@ -487,9 +1166,30 @@ public abstract class AbstractCassandaTestElement extends AbstractTestElement im
             }
         }
 
+        if (sb == null) {
+            return j + " rows, " + discardedBytes + " bytes"; // $NON-NLS-1$
+        }
         return sb.toString();
     }
 
+    /**
+     * @return true if the text of each result set should not be built, and the rows only counted
+     */
+    protected boolean isDiscardResponse() {
+        return false;
+    }
+
+    /**
+     * @return the size of the values in the last result set read while discarding the response
+     */
+    protected int getDiscardedBytes() {
+        return discardedBytes;
+    }
+
+    protected byte[] getResultSetBytes(ResultSet rs) throws UnsupportedEncodingException {
+        return getStringFromResultSet(rs).getBytes(ENCODING);
+    }
+
     public static void close(Session c) {
         int x=1;
         // TODO - implement some sort of close
@@ -498,7 +1198,7 @@ public abstract class AbstractCassandaTestElement extends AbstractTestElement im
     public static void close(Statement s) {
         int x=1;
         // TODO - we probably don't need to do anything here
-        // TODO - submit any open batches
+        // Open batches are applied by threadFinished()
     }
 
     public static void close(ResultSet rs) {
@@ -582,6 +1282,148 @@ public abstract class AbstractCassandaTestElement extends AbstractTestElement im
         }
     }
 
+    public String getAsyncWindow() {
+        return asyncWindow.toString();
+    }
+
+    public void setAsyncWindow(String asyncWindow) {
+        try {
+            this.asyncWindow = Integer.parseInt(asyncWindow);
+        } catch (NumberFormatException e) {
+            this.asyncWindow = 1;
+        }
+    }
+
+    public String getBatchGrouping() {
+        return batchGrouping;
+    }
+
+    public void setBatchGrouping(String batchGrouping) {
+        this.batchGrouping = batchGrouping;
+    }
+
+    public String getBatchType() {
+        return batchType;
+    }
+
+    public void setBatchType(String batchType) {
+        this.batchType = batchType;
+    }
+
+    public boolean isIdempotent() {
+        return idempotent;
+    }
+
+    /**
+     * @param idempotent whether the statement may be executed more than once, which the driver
+     *                   requires for speculative executions
+     */
+    public void setIdempotent(boolean idempotent) {
+        this.idempotent = idempotent;
+    }
+
+    public String getRoutingKeyTable() {
+        return routingKeyTable;
+    }
+
+    /**
+     * @param routingKeyTable table, optionally qualified by keyspace, whose partition key the Parameter
+     *                        Values of a simple statement give
+     */
+    public void setRoutingKeyTable(String routingKeyTable) {
+        this.routingKeyTable = routingKeyTable == null ? "" : routingKeyTable;
+        this.routingKeyQuery = null;
+    }
+
+    public String getBatchCoalescer() {
+        return batchCoalescer;
+    }
+
+    public void setBatchCoalescer(String batchCoalescer) {
+        this.batchCoalescer = batchCoalescer;
+    }
+
+    public String getBatchBytes() {
+        return Integer.toString(batchBytes);
+    }
+
+    /**
+     * @param batchBytes size of bound values at which a dynamic batch is applied, or 0 (or blank) for no limit
+     */
+    public void setBatchBytes(String batchBytes) {
+        try {
+            this.batchBytes = Integer.parseInt(batchBytes);
+        } catch (NumberFormatException e) {
+            this.batchBytes = 0;
+        }
+    }
+
+    public String getBatchLinger() {
+        return Long.toString(batchLinger);
+    }
+
+    /**
+     * @param batchLinger milliseconds a partly filled dynamic batch may stay open, or 0 (or blank) for no limit
+     */
+    public void setBatchLinger(String batchLinger) {
+        try {
+            this.batchLinger = Long.parseLong(batchLinger);
+        } catch (NumberFormatException e) {
+            this.batchLinger = 0;
+        }
+    }
+
+    public String getFetchSize() {
+        return Integer.toString(fetchSize);
+    }
+
+    /**
+     * @param fetchSize rows per page, or 0 (or blank) for the driver default
+     */
+    public void setFetchSize(String fetchSize) {
+        try {
+            this.fetchSize = Integer.parseInt(fetchSize);
+        } catch (NumberFormatException e) {
+            this.fetchSize = 0;
+        }
+    }
+
+    public String getPagingMode() {
+        return pagingMode;
+    }
+
+    public void setPagingMode(String pagingMode) {
+        this.pagingMode = pagingMode;
+    }
+
+    public String getRowLimit() {
+        return Integer.toString(rowLimit);
+    }
+
+    public void setRowLimit(String rowLimit) {
+        try {
+            this.rowLimit = Integer.parseInt(rowLimit);
+        } catch (NumberFormatException e) {
+            this.rowLimit = Integer.MAX_VALUE;
+        }
+    }
+
+    public String getPrefetchThreshold() {
+        return Integer.toString(prefetchThreshold);
+    }
+
+    /**
+     * @param prefetchThreshold fetch the next page when fewer rows than this remain, or 0 (or blank) to
+     *                          fetch only when the current page is used up
+     */
+    public void setPrefetchThreshold(String prefetchThreshold) {
+        try {
+            this.prefetchThreshold = Integer.parseInt(prefetchThreshold);
+        } catch (NumberFormatException e) {
+            this.prefetchThreshold = 0;
+        }
+    }
+
     /**
      * @return the variableNames
      */
@@ -639,7 +1481,8 @@ public abstract class AbstractCassandaTestElement extends AbstractTestElement im
      * @see org.apache.jmeter.testelement.TestStateListener#testStarted(String)
      */
     public void testStarted(String host) {
-        cleanCache();
+        startedElements.incrementAndGet();
+        prepareAtTestStart();
     }
 
     /**
@@ -655,13 +1498,45 @@ public abstract class AbstractCassandaTestElement extends AbstractTestElement im
      * @see org.apache.jmeter.testelement.TestStateListener#testEnded(String)
      */
     public void testEnded(String host) {
-        cleanCache();
+        startupPreparation = null;
+        if (startedElements.decrementAndGet() <= 0) {
+            startedElements.set(0);
+            cleanCache();
+        }
+    }
+
+    /**
+     * @return hit, miss and eviction counts of the PreparedStatement cache since the test started
+     */
+    public static CacheStats getPreparedStatementCacheStats() {
+        return perConnCache.stats();
+    }
+
+    public void threadStarted() {
+    }
+
+    /**
+     * Apply any partly filled dynamic batches, so that no statements are lost when the thread stops,
+     * and log how many statements this thread applied without reporting them in a sample
+     */
+    public void threadFinished() {
+        flushBatches();
+        if (unreportedStatements.get() > 0) {
+            log.info("Applied " + unreportedStatements.get() + " statements in " + unreportedBatches.get()
+                    + " batches by the linger timer or at thread end in " + getName()
+                    + " - no sample reports them");
+        }
     }
 
     /**
      * Clean cache of PreparedStatements
      */
     private static void cleanCache() {
+        CacheStats stats = perConnCache.stats();
+        if (stats.requestCount() > 0) {
+            log.info("Prepared statement cache: " + stats.hitCount() + " hits, " + stats.missCount() + " misses, "
+                    + stats.evictionCount() + " evictions");
+        }
         perConnCache.clear();
     }
 
@@ -0,0 +1,213 @@
+package org.apache.cassandra.jmeter;
+/*
+ * Copyright 2014 Steven Lowenthal
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.datastax.driver.core.*;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.util.*;
+
+/**
+ * Converts a query argument from its string form and sets it on a bound statement.  A binder
+ * is chosen once for each variable of a prepared statement, so binding an argument does not
+ * need to look at the variable's type.  Binders are shared between threads.
+ */
+abstract class ArgumentBinder {
+
+    private final Class<?> javaType;
+
+    ArgumentBinder(Class<?> javaType) {
+        this.javaType = javaType;
+    }
+
+    Class<?> getJavaType() {
+        return javaType;
+    }
+
+    abstract void bind(BoundStatement stmt, int i, String argument) throws ParseException, UnknownHostException;
+
+    /**
+     * @return a binder for each variable of the prepared statement
+     */
+    static ArgumentBinder[] forVariables(ColumnDefinitions colDefs) {
+        ArgumentBinder[] binders = new ArgumentBinder[colDefs.size()];
+        for (int i = 0; i < binders.length; i++) {
+            binders[i] = forType(colDefs.getType(i));
+        }
+        return binders;
+    }
+
+    static ArgumentBinder forType(final DataType tp) {
+        Class<?> javaType = tp.asJavaClass();
+
+        if (javaType == Integer.class)
+            return INT;
+        if (javaType == Boolean.class)
+            return BOOLEAN;
+        if (javaType == ByteBuffer.class)
+            return BLOB;
+        if (javaType == Date.class)
+            return TIMESTAMP;
+        if (javaType == BigDecimal.class)
+            return DECIMAL;
+        if (javaType == Double.class)
+            return DOUBLE;
+        if (javaType == Float.class)
+            return FLOAT;
+        if (javaType == InetAddress.class)
+            return INET;
+        if (javaType == Long.class)
+            return LONG;
+        if (javaType == String.class)
+            return STRING;
+        if (javaType == UUID.class)
+            return UUID_BINDER;
+        if (javaType == BigInteger.class)
+            return VARINT;
+        if (javaType == TupleValue.class)
+            return new ArgumentBinder(javaType) {
+                void bind(BoundStatement stmt, int i, String argument) {
+                    stmt.setTupleValue(i, (TupleValue) tp.parse(argument));
+                }
+            };
+        if (javaType == UDTValue.class)
+            return new ArgumentBinder(javaType) {
+                void bind(BoundStatement stmt, int i, String argument) {
+                    stmt.setUDTValue(i, (UDTValue) tp.parse(argument));
+                }
+            };
+        if (javaType.isAssignableFrom(Set.class))
+            return new ArgumentBinder(javaType) {
+                void bind(BoundStatement stmt, int i, String argument) {
+                    stmt.setSet(i, (Set<?>) tp.parse(argument));
+                }
+            };
+        if (javaType.isAssignableFrom(List.class))
+            return new ArgumentBinder(javaType) {
+                void bind(BoundStatement stmt, int i, String argument) {
+                    stmt.setList(i, (List<?>) tp.parse(argument));
+                }
+            };
+        if (javaType.isAssignableFrom(Map.class))
+            return new ArgumentBinder(javaType) {
+                void bind(BoundStatement stmt, int i, String argument) {
+                    stmt.setMap(i, (Map<?, ?>) tp.parse(argument));
+                }
+            };
+
+        throw new RuntimeException("Unsupported Type: " + javaType);
+    }
+
+    private static final ArgumentBinder INT = new ArgumentBinder(Integer.class) {
+        void bind(BoundStatement stmt, int i, String argument) {
+            stmt.setInt(i, Integer.parseInt(argument));
+        }
+    };
+
+    private static final ArgumentBinder BOOLEAN = new ArgumentBinder(Boolean.class) {
+        void bind(BoundStatement stmt, int i, String argument) {
+            stmt.setBool(i, Boolean.parseBoolean(argument));
+        }
+    };
+
+    private static final ArgumentBinder BLOB = new ArgumentBinder(ByteBuffer.class) {
+        void bind(BoundStatement stmt, int i, String argument) throws ParseException {
+            stmt.setBytes(i, ByteBuffer.wrap(hexStringToByteArray(argument)));
+        }
+    };
+
+    private static final ArgumentBinder TIMESTAMP = new ArgumentBinder(Date.class) {
+        void bind(BoundStatement stmt, int i, String argument) throws ParseException {
+            stmt.setDate(i, new Date(TimestampCodec.parse(argument)));
+        }
+    };
+
+    private static final ArgumentBinder DECIMAL = new ArgumentBinder(BigDecimal.class) {
+        void bind(BoundStatement stmt, int i, String argument) {
+            stmt.setDecimal(i, new BigDecimal(argument));
+        }
+    };
+
+    private static final ArgumentBinder DOUBLE = new ArgumentBinder(Double.class) {
+        void bind(BoundStatement stmt, int i, String argument) {
+            stmt.setDouble(i, Double.parseDouble(argument));
+        }
+    };
+
+    private static final ArgumentBinder FLOAT = new ArgumentBinder(Float.class) {
+        void bind(BoundStatement stmt, int i, String argument) {
+            stmt.setFloat(i, Float.parseFloat(argument));
+        }
+    };
+
+    private static final ArgumentBinder INET = new ArgumentBinder(InetAddress.class) {
+        void bind(BoundStatement stmt, int i, String argument) throws UnknownHostException {
+            int start = argument.startsWith("/") ? 1 : 0;    // strip off leading /
+            stmt.setInet(i, InetAddress.getByName(argument.substring(start)));
+        }
+    };
+
+    private static final ArgumentBinder LONG = new ArgumentBinder(Long.class) {
+        void bind(BoundStatement stmt, int i, String argument) {
+            stmt.setLong(i, Long.parseLong(argument));
+        }
+    };
+
+    private static final ArgumentBinder STRING = new ArgumentBinder(String.class) {
+        void bind(BoundStatement stmt, int i, String argument) {
+            stmt.setString(i, argument);
+        }
+    };
+
+    private static final ArgumentBinder UUID_BINDER = new ArgumentBinder(UUID.class) {
+        void bind(BoundStatement stmt, int i, String argument) {
+            stmt.setUUID(i, UUID.fromString(argument));
+        }
+    };
+
+    private static final ArgumentBinder VARINT = new ArgumentBinder(BigInteger.class) {
+        void bind(BoundStatement stmt, int i, String argument) {
+            stmt.setVarint(i, new BigInteger(argument));
+        }
+    };
+
+    private static byte[] hexStringToByteArray(String s) throws ParseException {
+
+        if (! s.startsWith("0x")) {
+            throw new ParseException("blob must start with 0x", 0);
+        }
+        int len = s.length() -2 ;
+        byte[] data = new byte[len / 2];
+        for (int i = 0; i < len; i += 2) {
+            data[i / 2] = (byte) ((charToHexDigit(s.charAt(i + 2)) << 4)
+                    + charToHexDigit(s.charAt(i + 3)));
+        }
+        return data;
+    }
+
+    private static int charToHexDigit(char ch) throws ParseException {
+        int digit = Character.digit(ch,16);
+        if (digit == -1 ) {
+            throw new ParseException("\"" + ch + "\" is an invalid character", 0);
+        }
+        return digit;
+    }
+}
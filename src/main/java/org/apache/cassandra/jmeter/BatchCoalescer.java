@@ -0,0 +1,269 @@
+package org.apache.cassandra.jmeter;
+/*
+ * Copyright 2014 Steven Lowenthal
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.ConsistencyLevel;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.exceptions.DriverException;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects bound statements from many threads into batches, one for each partition, and applies
+ * a batch when it is full or has waited long enough.  Each caller waits until the batch holding
+ * its statement has been applied, like a group commit.
+ */
+public class BatchCoalescer {
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    // Coalescers of the running test, by name
+    private static final Map<String, BatchCoalescer> coalescers = new ConcurrentHashMap<String, BatchCoalescer>();
+
+    // Group for statements without a routing key
+    private static final Object UNGROUPED = new Object();
+
+    private final String name;
+    private final BatchStatement.Type type;
+    private final int batchSize;
+    private final int batchBytes;
+    private final long linger;
+
+    // Guarded by this.  In the order the batches were started
+    private final Map<List<Object>, PendingBatch> batches = new LinkedHashMap<List<Object>, PendingBatch>();
+
+    private final ScheduledExecutorService timer;
+
+    /**
+     * @param batchBytes size of bound values at which a batch is applied, or 0 for no limit
+     * @param linger milliseconds after which a partly filled batch is applied
+     */
+    public BatchCoalescer(String name, BatchStatement.Type type, int batchSize, int batchBytes, long linger) {
+        this.name = name;
+        this.type = type;
+        this.batchSize = batchSize;
+        this.batchBytes = batchBytes;
+        this.linger = linger;
+        this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "BatchCoalescer " + BatchCoalescer.this.name); // $NON-NLS-1$
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        long period = Math.max(1, linger / 2);
+        timer.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                applyExpired();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Make the coalescer available to test elements by name, replacing any with the same name
+     */
+    public static void register(BatchCoalescer coalescer) {
+        BatchCoalescer previous = coalescers.put(coalescer.name, coalescer);
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    /**
+     * Apply any open batches and stop the coalescer with the given name
+     */
+    public static void unregister(String name) {
+        BatchCoalescer coalescer = coalescers.remove(name);
+        if (coalescer != null) {
+            coalescer.close();
+        }
+    }
+
+    /**
+     * @return the coalescer with the given name, or <code>null</code>
+     */
+    public static BatchCoalescer getCoalescer(String name) {
+        return coalescers.get(name);
+    }
+
+    /**
+     * Add the statement to the batch for its partition and wait for the batch to be applied
+     *
+     * @return the result of the batch
+     */
+    public ResultSet execute(Session session, BoundStatement statement) throws InterruptedException {
+        try {
+            return submit(session, statement).get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof DriverException) {
+                // Copy to get a stack trace from this thread, as the driver does
+                throw ((DriverException) cause).copy();
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * Add the statement to the batch for its partition
+     *
+     * @return a future that completes when the batch has been applied
+     */
+    public ListenableFuture<ResultSet> submit(Session session, BoundStatement statement) {
+        SettableFuture<ResultSet> future = SettableFuture.create();
+        ByteBuffer routingKey = statement.getRoutingKey();
+        List<Object> group = Arrays.asList(session, routingKey == null ? UNGROUPED : routingKey.duplicate());
+        int bytes = AbstractCassandaTestElement.valueBytes(statement);
+        List<PendingBatch> ready = new ArrayList<PendingBatch>(2);
+        synchronized (this) {
+            PendingBatch batch = batches.get(group);
+            if (batch != null && batchBytes > 0 && batch.bytes + bytes > batchBytes) {
+                // Adding the statement would take the batch over the limit, so apply it without
+                ready.add(batches.remove(group));
+                batch = null;
+            }
+            if (batch == null) {
+                batch = new PendingBatch(session, new BatchStatement(type));
+                batches.put(group, batch);
+            }
+            batch.add(statement, bytes, future);
+            if (batch.statement.size() >= batchSize || (batchBytes > 0 && batch.bytes >= batchBytes)) {
+                ready.add(batches.remove(group));
+            }
+        }
+        for (PendingBatch batch : ready) {
+            apply(batch);
+        }
+        return future;
+    }
+
+    private void applyExpired() {
+        List<PendingBatch> ready = new ArrayList<PendingBatch>();
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            Iterator<PendingBatch> it = batches.values().iterator();
+            while (it.hasNext()) {
+                PendingBatch batch = it.next();
+                if (now - batch.started < linger) {
+                    break; // The rest were started later
+                }
+                it.remove();
+                ready.add(batch);
+            }
+        }
+        for (PendingBatch batch : ready) {
+            apply(batch);
+        }
+    }
+
+    private void apply(final PendingBatch batch) {
+        // All the statements come from samplers with the same settings, so use the first one's
+        batch.statement.setConsistencyLevel(batch.consistencyLevel);
+        ListenableFuture<ResultSet> result;
+        try {
+            result = batch.session.executeAsync(batch.statement);
+        } catch (RuntimeException e) {
+            batch.fail(e);
+            return;
+        }
+        Futures.addCallback(result, new FutureCallback<ResultSet>() {
+            public void onSuccess(ResultSet rs) {
+                for (SettableFuture<ResultSet> future : batch.futures) {
+                    future.set(rs);
+                }
+            }
+
+            public void onFailure(Throwable t) {
+                batch.fail(t);
+            }
+        });
+    }
+
+    /**
+     * Apply the open batches and wait for them, then stop the timer
+     */
+    private void close() {
+        timer.shutdownNow();
+        List<PendingBatch> ready;
+        synchronized (this) {
+            ready = new ArrayList<PendingBatch>(batches.values());
+            batches.clear();
+        }
+        List<ListenableFuture<ResultSet>> applied = new ArrayList<ListenableFuture<ResultSet>>();
+        for (PendingBatch batch : ready) {
+            apply(batch);
+            applied.addAll(batch.futures);
+        }
+        try {
+            Futures.successfulAsList(applied).get();
+        } catch (Exception e) {
+            log.warn("Could not apply open batches of " + name + ": " + e);
+        }
+        log.debug("Applied " + ready.size() + " open batches of " + name);
+    }
+
+    private static final class PendingBatch {
+        private final Session session;
+        private final BatchStatement statement;
+        private final List<SettableFuture<ResultSet>> futures = new ArrayList<SettableFuture<ResultSet>>();
+        private final long started = System.currentTimeMillis();
+        private ConsistencyLevel consistencyLevel;
+        private int bytes;
+
+        PendingBatch(Session session, BatchStatement statement) {
+            this.session = session;
+            this.statement = statement;
+        }
+
+        void add(BoundStatement bound, int size, SettableFuture<ResultSet> future) {
+            if (futures.isEmpty()) {
+                consistencyLevel = bound.getConsistencyLevel();
+            }
+            statement.add(bound);
+            bytes += size;
+            futures.add(future);
+        }
+
+        void fail(Throwable t) {
+            for (SettableFuture<ResultSet> future : futures) {
+                future.setException(t);
+            }
+        }
+    }
+}
@@ -23,6 +23,22 @@ import java.beans.PropertyDescriptor;
 
 public abstract class CassandraTestElementBeanInfoSupport extends BeanInfoSupport {
 
+    // Query types that need a sample to report on, so only a sampler offers them
+    protected static final String[] SAMPLER_QUERY_TYPES = new String[]{
+            AbstractCassandaTestElement.SIMPLE,
+            AbstractCassandaTestElement.PREPARED,
+            AbstractCassandaTestElement.DYNAMIC_BATCH,
+            AbstractCassandaTestElement.COALESCED,
+            AbstractCassandaTestElement.ASYNC
+            };
+
+    // Query types that can be sent asynchronously, one statement per request
+    protected static final String[] ASYNC_QUERY_TYPES = new String[]{
+            AbstractCassandaTestElement.SIMPLE,
+            AbstractCassandaTestElement.PREPARED,
+            AbstractCassandaTestElement.ASYNC
+            };
+
     /**
      *
      */
@@ -37,10 +53,24 @@ public abstract class CassandraTestElementBeanInfoSupport extends BeanInfoSuppor
                 "queryType", // $NON-NLS-1$
                 "query", // $NON-NLS-1$
                 "queryArguments", // $NON-NLS-1$
+                "routingKeyTable", // $NON-NLS-1$
                 "variableNames", // $NON-NLS-1$
                 "resultVariable", // $NON-NLS-1$
                 "consistencyLevel", // $NON-NLS-1$
-                "batchSize" // $NON-NLS-1$
+                "idempotent", // $NON-NLS-1$
+                "batchSize", // $NON-NLS-1$
+                "batchType", // $NON-NLS-1$
+                "batchBytes", // $NON-NLS-1$
+                "batchGrouping", // $NON-NLS-1$
+                "batchLinger" // $NON-NLS-1$
+                });
+
+        createPropertyGroup("paging", // $NON-NLS-1$
+                new String[] {
+                "fetchSize", // $NON-NLS-1$
+                "pagingMode", // $NON-NLS-1$
+                "rowLimit", // $NON-NLS-1$
+                "prefetchThreshold" // $NON-NLS-1$
                 });
 
         PropertyDescriptor p = property("sessionName"); // $NON-NLS-1$
@@ -51,6 +81,10 @@ public abstract class CassandraTestElementBeanInfoSupport extends BeanInfoSuppor
         p.setValue(NOT_UNDEFINED, Boolean.TRUE);
         p.setValue(DEFAULT, ""); // $NON-NLS-1$
 
+        p = property("routingKeyTable"); // $NON-NLS-1$
+        p.setValue(NOT_UNDEFINED, Boolean.TRUE);
+        p.setValue(DEFAULT, ""); // $NON-NLS-1$
+
         p = property("variableNames"); // $NON-NLS-1$
         p.setValue(NOT_UNDEFINED, Boolean.TRUE);
         p.setValue(DEFAULT, ""); // $NON-NLS-1$
@@ -59,10 +93,75 @@ public abstract class CassandraTestElementBeanInfoSupport extends BeanInfoSuppor
         p.setValue(NOT_UNDEFINED, Boolean.TRUE);
         p.setValue(DEFAULT, ""); // $NON-NLS-1$
 
+        p = property("idempotent"); // $NON-NLS-1$
+        p.setValue(NOT_UNDEFINED, Boolean.TRUE);
+        p.setValue(DEFAULT, Boolean.FALSE);
+
         p = property("batchSize"); // $NON-NLS-1$
         p.setValue(NOT_UNDEFINED, Boolean.TRUE);
         p.setValue(DEFAULT, "");
 
+        p = property("batchType"); // $NON-NLS-1$
+        p.setValue(NOT_UNDEFINED, Boolean.TRUE);
+        p.setValue(DEFAULT, AbstractCassandaTestElement.UNLOGGED);
+        p.setValue(NOT_OTHER,Boolean.TRUE);
+        p.setValue(TAGS,new String[]{
+                AbstractCassandaTestElement.UNLOGGED,
+                AbstractCassandaTestElement.LOGGED,
+                AbstractCassandaTestElement.COUNTER
+                });
+
+        p = property("batchBytes"); // $NON-NLS-1$
+        p.setValue(NOT_UNDEFINED, Boolean.TRUE);
+        p.setValue(DEFAULT, "");
+
+        p = property("batchGrouping"); // $NON-NLS-1$
+        p.setValue(NOT_UNDEFINED, Boolean.TRUE);
+        p.setValue(DEFAULT, AbstractCassandaTestElement.BATCH_UNGROUPED);
+        p.setValue(NOT_OTHER,Boolean.TRUE);
+        p.setValue(TAGS,new String[]{
+                AbstractCassandaTestElement.BATCH_UNGROUPED,
+                AbstractCassandaTestElement.BATCH_BY_PARTITION,
+                AbstractCassandaTestElement.BATCH_BY_REPLICAS
+                });
+
+        p = property("batchLinger"); // $NON-NLS-1$
+        p.setValue(NOT_UNDEFINED, Boolean.TRUE);
+        p.setValue(DEFAULT, "");
+
+        // Only the samplers run the query types that use these - see CassandraSamplerBeanInfo
+        p = property("batchCoalescer"); // $NON-NLS-1$
+        p.setValue(NOT_UNDEFINED, Boolean.TRUE);
+        p.setValue(DEFAULT, "");
+        p.setHidden(true);
+
+        p = property("asyncWindow"); // $NON-NLS-1$
+        p.setValue(NOT_UNDEFINED, Boolean.TRUE);
+        p.setValue(DEFAULT, "");
+        p.setHidden(true);
+
+        p = property("fetchSize"); // $NON-NLS-1$
+        p.setValue(NOT_UNDEFINED, Boolean.TRUE);
+        p.setValue(DEFAULT, "");
+
+        p = property("pagingMode"); // $NON-NLS-1$
+        p.setValue(NOT_UNDEFINED, Boolean.TRUE);
+        p.setValue(DEFAULT, AbstractCassandaTestElement.ALL_PAGES);
+        p.setValue(NOT_OTHER,Boolean.TRUE);
+        p.setValue(TAGS,new String[]{
+                AbstractCassandaTestElement.ALL_PAGES,
+                AbstractCassandaTestElement.FIRST_PAGE,
+                AbstractCassandaTestElement.ROW_LIMIT
+                });
+
+        p = property("rowLimit"); // $NON-NLS-1$
+        p.setValue(NOT_UNDEFINED, Boolean.TRUE);
+        p.setValue(DEFAULT, "");
+
+        p = property("prefetchThreshold"); // $NON-NLS-1$
+        p.setValue(NOT_UNDEFINED, Boolean.TRUE);
+        p.setValue(DEFAULT, "");
+
         p = property("queryType"); // $NON-NLS-1$
         p.setValue(NOT_UNDEFINED, Boolean.TRUE);
         p.setValue(DEFAULT, AbstractCassandaTestElement.SIMPLE);
@@ -0,0 +1,250 @@
+package org.apache.cassandra.jmeter;
+/*
+ * Copyright 2014 Steven Lowenthal
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramLogWriter;
+import org.HdrHistogram.Recorder;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+/**
+ * Records the latency of every execution in microseconds, by the name of the element that executed
+ * it, without going through JMeter's listeners.  Each thread records into its own {@link Recorder},
+ * so recording never waits.  The recorders of each name are merged periodically, and each interval
+ * is written to an HdrHistogram log, &lt;name&gt;.hlog, so memory use stays the same however long
+ * the test runs.  The logs can be read with HistogramLogProcessor.
+ */
+public class LatencyRecorder {
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    // Recorder of the running test, if any
+    private static volatile LatencyRecorder current;
+
+    private final File directory;
+    private final long interval;
+    private final int significantDigits;
+
+    // Guarded by this.  Sorted by name for the summary
+    private final Map<String, NamedLatency> latencies = new TreeMap<String, NamedLatency>();
+
+    private final long started = System.currentTimeMillis();
+
+    private final ScheduledExecutorService timer;
+
+    /**
+     * @param directory where to write the logs
+     * @param interval milliseconds between merges, which is the length of each interval in the logs
+     * @param significantDigits precision of the histograms, from 0 to 5
+     */
+    public LatencyRecorder(File directory, long interval, int significantDigits) {
+        this.directory = directory;
+        this.interval = interval;
+        this.significantDigits = significantDigits;
+        this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "LatencyRecorder"); // $NON-NLS-1$
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        timer.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                merge();
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Make the recorder available to test elements, replacing any running one
+     */
+    public static void register(LatencyRecorder recorder) {
+        LatencyRecorder previous = current;
+        current = recorder;
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    /**
+     * Write the last interval, close the logs and log a summary for each name
+     */
+    public static void unregister() {
+        LatencyRecorder previous = current;
+        current = null;
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    /**
+     * @return a new recorder, for the calling thread only, whose latencies are merged into those of
+     * the given name, or <code>null</code> if no latency recorder is running
+     */
+    public static Recorder getRecorder(String name) {
+        LatencyRecorder recorder = current;
+        return recorder == null ? null : recorder.newRecorder(name);
+    }
+
+    private synchronized Recorder newRecorder(String name) {
+        NamedLatency latency = latencies.get(name);
+        if (latency == null) {
+            latency = new NamedLatency(name);
+            latencies.put(name, latency);
+        }
+        // Resizes itself, so any latency can be recorded
+        ThreadLatency thread = new ThreadLatency(new Recorder(significantDigits));
+        latency.threads.add(thread);
+        return thread.recorder;
+    }
+
+    private synchronized void merge() {
+        long now = System.currentTimeMillis();
+        for (NamedLatency latency : latencies.values()) {
+            try {
+                latency.merge(now);
+            } catch (RuntimeException e) {
+                // Don't let it stop the timer
+                log.warn("Could not merge the latency of " + latency.name + ": " + e);
+            }
+        }
+    }
+
+    private void close() {
+        timer.shutdown();
+        try {
+            timer.awaitTermination(interval, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        merge();
+        synchronized (this) {
+            for (NamedLatency latency : latencies.values()) {
+                latency.close();
+                log.info("Latency of " + latency.summary());
+            }
+        }
+    }
+
+    private final class NamedLatency {
+        private final String name;
+        private final List<ThreadLatency> threads = new ArrayList<ThreadLatency>();
+        private final Histogram intervalHistogram = new Histogram(significantDigits);
+        private final Histogram totalHistogram = new Histogram(significantDigits);
+        private PrintStream out;
+        private long intervalStart = started;
+
+        NamedLatency(String name) {
+            this.name = name;
+            File file = new File(directory, name.replaceAll("[^A-Za-z0-9._-]", "_") + ".hlog"); // $NON-NLS-1$ $NON-NLS-2$
+            try {
+                out = new PrintStream(new FileOutputStream(file), false, "UTF-8"); // $NON-NLS-1$
+                HistogramLogWriter writer = new HistogramLogWriter(out);
+                writer.outputComment("Latency of " + name + " in microseconds"); // $NON-NLS-1$
+                writer.outputLogFormatVersion();
+                writer.outputStartTime(started);
+                writer.setBaseTime(started);
+                writer.outputLegend();
+            } catch (FileNotFoundException e) {
+                log.error("Could not write latency log " + file + ": " + e);
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        void merge(long now) {
+            intervalHistogram.reset();
+            for (ThreadLatency thread : threads) {
+                thread.recycled = thread.recorder.getIntervalHistogram(thread.recycled);
+                intervalHistogram.add(thread.recycled);
+            }
+            intervalHistogram.setStartTimeStamp(intervalStart);
+            intervalHistogram.setEndTimeStamp(now);
+            intervalStart = now;
+            totalHistogram.add(intervalHistogram);
+            if (out != null) {
+                writeInterval(intervalHistogram.copy());
+            }
+        }
+
+        /**
+         * Write the interval as HistogramLogWriter does, but without javax.xml.bind, which newer JVMs lack
+         */
+        private void writeInterval(Histogram histogram) {
+            // A histogram keeps the buffer of its first encoding even after it has grown, hence the copy
+            ByteBuffer buffer = ByteBuffer.allocate(histogram.getNeededByteBufferCapacity());
+            int length = histogram.encodeIntoCompressedByteBuffer(buffer, Deflater.BEST_COMPRESSION);
+            byte[] compressed = new byte[length];
+            buffer.rewind();
+            buffer.get(compressed);
+            out.format(Locale.US, "%.3f,%.3f,%.3f,%s\n", // $NON-NLS-1$
+                    (histogram.getStartTimeStamp() - started) / 1000.0,
+                    (histogram.getEndTimeStamp() - histogram.getStartTimeStamp()) / 1000.0,
+                    histogram.getMaxValue() / 1000000.0, // As HistogramLogWriter, for microseconds
+                    Base64.encodeBase64String(compressed));
+            out.flush();
+        }
+
+        void close() {
+            if (out != null) {
+                out.close();
+            }
+        }
+
+        /**
+         * @return the name, count and latency percentiles in microseconds over the whole test
+         */
+        String summary() {
+            return name
+                    + " count=" + totalHistogram.getTotalCount() // $NON-NLS-1$
+                    + " mean=" + (long) totalHistogram.getMean() // $NON-NLS-1$
+                    + " p50=" + totalHistogram.getValueAtPercentile(50) // $NON-NLS-1$
+                    + " p99=" + totalHistogram.getValueAtPercentile(99) // $NON-NLS-1$
+                    + " p99.9=" + totalHistogram.getValueAtPercentile(99.9) // $NON-NLS-1$
+                    + " p99.99=" + totalHistogram.getValueAtPercentile(99.99) // $NON-NLS-1$
+                    + " max=" + totalHistogram.getMaxValue() // $NON-NLS-1$
+                    + " (us)"; // $NON-NLS-1$
+        }
+    }
+
+    private static final class ThreadLatency {
+        private final Recorder recorder;
+        // Returned by the recorder at the previous merge, for it to reuse
+        private Histogram recycled;
+
+        ThreadLatency(Recorder recorder) {
+            this.recorder = recorder;
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package org.apache.cassandra.jmeter;
+/*
+ * Copyright 2014 Steven Lowenthal
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.datastax.driver.core.PreparedStatement;
+
+/**
+ * A prepared statement together with the binders for its variables, so that both are
+ * worked out once per statement rather than on every sample.
+ */
+class PreparedQuery {
+
+    private final PreparedStatement statement;
+    private final ArgumentBinder[] binders;
+
+    PreparedQuery(PreparedStatement statement) {
+        this.statement = statement;
+        this.binders = ArgumentBinder.forVariables(statement.getVariables());
+    }
+
+    PreparedStatement getStatement() {
+        return statement;
+    }
+
+    ArgumentBinder[] getBinders() {
+        return binders;
+    }
+}
@@ -0,0 +1,124 @@
+package org.apache.cassandra.jmeter;
+/*
+ * Copyright 2014 Steven Lowenthal
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.exceptions.DriverException;
+import com.google.common.base.Function;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Cache of prepared statements shared by all threads, with a cache of its own for each session,
+ * keyed by query string, so that the size limit applies to each session.  Lookups don't lock,
+ * and a query is prepared only once however many threads ask for it at the same time - they all
+ * wait for the same future.
+ */
+class PreparedStatementCache {
+
+    private final int maximumSize;
+
+    // Sessions don't override equals(), so this is by identity
+    private final ConcurrentMap<Session, LoadingCache<String, ListenableFuture<PreparedQuery>>> caches =
+            new ConcurrentHashMap<Session, LoadingCache<String, ListenableFuture<PreparedQuery>>>();
+
+    /**
+     * @param maximumSize the most statements kept for each session
+     */
+    PreparedStatementCache(int maximumSize) {
+        this.maximumSize = maximumSize;
+    }
+
+    /**
+     * @return the prepared query, waiting for it to be prepared if necessary
+     */
+    PreparedQuery get(Session session, String query) {
+        LoadingCache<String, ListenableFuture<PreparedQuery>> cache = cacheFor(session);
+        ListenableFuture<PreparedQuery> future = cache.getUnchecked(query);
+        try {
+            return Uninterruptibles.getUninterruptibly(future);
+        } catch (ExecutionException e) {
+            // Don't keep the failure - the next caller will try again
+            cache.asMap().remove(query, future);
+            Throwable cause = e.getCause();
+            if (cause instanceof DriverException) {
+                // Copy to get a stack trace from this thread, as the driver does
+                throw ((DriverException) cause).copy();
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * Start preparing the query if it isn't already, without waiting for it
+     */
+    ListenableFuture<PreparedQuery> prepareAsync(Session session, String query) {
+        return cacheFor(session).getUnchecked(query);
+    }
+
+    /**
+     * @return hit, miss, load and eviction counts, over all sessions, since the last clear()
+     */
+    CacheStats stats() {
+        CacheStats stats = new CacheStats(0, 0, 0, 0, 0, 0);
+        for (LoadingCache<String, ListenableFuture<PreparedQuery>> cache : caches.values()) {
+            stats = stats.plus(cache.stats());
+        }
+        return stats;
+    }
+
+    void clear() {
+        caches.clear();
+    }
+
+    private LoadingCache<String, ListenableFuture<PreparedQuery>> cacheFor(final Session session) {
+        LoadingCache<String, ListenableFuture<PreparedQuery>> cache = caches.get(session);
+        if (cache == null) {
+            LoadingCache<String, ListenableFuture<PreparedQuery>> created = CacheBuilder.newBuilder()
+                    .maximumSize(maximumSize)
+                    .recordStats()
+                    .build(new CacheLoader<String, ListenableFuture<PreparedQuery>>() {
+                        @Override
+                        public ListenableFuture<PreparedQuery> load(String query) {
+                            return Futures.transform(session.prepareAsync(query),
+                                    new Function<PreparedStatement, PreparedQuery>() {
+                                        public PreparedQuery apply(PreparedStatement statement) {
+                                            return new PreparedQuery(statement);
+                                        }
+                                    });
+                        }
+                    });
+            cache = caches.putIfAbsent(session, created);
+            if (cache == null) {
+                cache = created;
+            }
+        }
+        return cache;
+    }
+}
@@ -0,0 +1,199 @@
+package org.apache.cassandra.jmeter;
+/*
+ * Copyright 2014 Steven Lowenthal
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.text.ParseException;
+import java.util.TimeZone;
+
+/**
+ * Parses and formats timestamps without SimpleDateFormat, which is slow, creates a lot of
+ * garbage and can't be shared between threads.  The formats accepted are
+ * <ul>
+ *     <li>yyyy-MM-dd HH:mm:ssZ, e.g. 1997-08-28 23:14:00-0700</li>
+ *     <li>yyyy-MM-dd HH:mm:ss in the local time zone</li>
+ *     <li>yyyy-MM-dd in the local time zone</li>
+ *     <li>milliseconds since the epoch, e.g. 872835240000</li>
+ * </ul>
+ * Timestamps are formatted as yyyy-MM-dd HH:mm:ssZ in the local time zone.
+ */
+final class TimestampCodec {
+
+    private static final TimeZone TIME_ZONE = TimeZone.getDefault();
+
+    private static final long MILLIS_PER_DAY = 86400000L;
+
+    private static final int DATE_LENGTH = AbstractCassandaTestElement.CASSANDRA_DATE_FORMAT_STRING3.length();
+    private static final int DATE_TIME_LENGTH = AbstractCassandaTestElement.CASSANDRA_DATE_FORMAT_STRING2.length();
+    private static final int DATE_TIME_ZONE_LENGTH = DATE_TIME_LENGTH + "+hhmm".length();
+
+    private TimestampCodec() {
+    }
+
+    /**
+     * @return the timestamp in milliseconds since the epoch
+     */
+    static long parse(String s) throws ParseException {
+        int len = s.length();
+        if (isEpochMillis(s)) {
+            return Long.parseLong(s);
+        }
+        if (len != DATE_LENGTH && len != DATE_TIME_LENGTH && len != DATE_TIME_ZONE_LENGTH) {
+            throw new ParseException("Unrecognized timestamp \"" + s + "\"", 0);
+        }
+
+        int year = digits(s, 0, 4);
+        expect(s, 4, '-');
+        int month = digits(s, 5, 2);
+        expect(s, 7, '-');
+        int day = digits(s, 8, 2);
+        if (month < 1 || month > 12) {
+            throw new ParseException("Invalid month in \"" + s + "\"", 5);
+        }
+        long millis = daysFromCivil(year, month, day) * MILLIS_PER_DAY;
+        if (len == DATE_LENGTH) {
+            return localToUtc(millis);
+        }
+
+        if (s.charAt(10) != ' ' && s.charAt(10) != 'T') {
+            throw new ParseException("Expected ' ' in \"" + s + "\"", 10);
+        }
+        int hour = digits(s, 11, 2);
+        expect(s, 13, ':');
+        int minute = digits(s, 14, 2);
+        expect(s, 16, ':');
+        int second = digits(s, 17, 2);
+        millis += ((hour * 60L + minute) * 60L + second) * 1000L;
+        if (len == DATE_TIME_LENGTH) {
+            return localToUtc(millis);
+        }
+
+        char sign = s.charAt(19);
+        if (sign != '+' && sign != '-') {
+            throw new ParseException("Expected time zone offset in \"" + s + "\"", 19);
+        }
+        int offset = (digits(s, 20, 2) * 60 + digits(s, 22, 2)) * 60000;
+        return sign == '+' ? millis - offset : millis + offset;
+    }
+
+    /**
+     * @return the timestamp formatted as yyyy-MM-dd HH:mm:ssZ in the local time zone
+     */
+    static String format(long millis) {
+        char[] buf = new char[DATE_TIME_ZONE_LENGTH];
+        int offset = TIME_ZONE.getOffset(millis);
+        long local = millis + offset;
+        long days = local / MILLIS_PER_DAY;
+        long millisOfDay = local % MILLIS_PER_DAY;
+        if (millisOfDay < 0) {
+            days--;
+            millisOfDay += MILLIS_PER_DAY;
+        }
+
+        // Civil date from days since the epoch, in the proleptic Gregorian calendar
+        long z = days + 719468;
+        long era = (z >= 0 ? z : z - 146096) / 146097;
+        int doe = (int) (z - era * 146097);
+        int yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        int doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        int mp = (5 * doy + 2) / 153;
+        int day = doy - (153 * mp + 2) / 5 + 1;
+        int month = mp < 10 ? mp + 3 : mp - 9;
+        long year = yoe + era * 400 + (month <= 2 ? 1 : 0);
+
+        int secondOfDay = (int) (millisOfDay / 1000);
+        put(buf, 0, (int) year, 4);
+        buf[4] = '-';
+        put(buf, 5, month, 2);
+        buf[7] = '-';
+        put(buf, 8, day, 2);
+        buf[10] = ' ';
+        put(buf, 11, secondOfDay / 3600, 2);
+        buf[13] = ':';
+        put(buf, 14, secondOfDay / 60 % 60, 2);
+        buf[16] = ':';
+        put(buf, 17, secondOfDay % 60, 2);
+
+        int offsetMinutes = offset / 60000;
+        if (offsetMinutes < 0) {
+            buf[19] = '-';
+            offsetMinutes = -offsetMinutes;
+        } else {
+            buf[19] = '+';
+        }
+        put(buf, 20, offsetMinutes / 60, 2);
+        put(buf, 22, offsetMinutes % 60, 2);
+
+        if (year > 9999) {
+            return Long.toString(year) + new String(buf, 4, buf.length - 4);
+        }
+        return new String(buf);
+    }
+
+    private static boolean isEpochMillis(String s) {
+        int len = s.length();
+        int start = len > 1 && s.charAt(0) == '-' ? 1 : 0;
+        if (len == start) {
+            return false;
+        }
+        for (int i = start; i < len; i++) {
+            char ch = s.charAt(i);
+            if (ch < '0' || ch > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int digits(String s, int start, int count) throws ParseException {
+        int value = 0;
+        for (int i = start; i < start + count; i++) {
+            char ch = s.charAt(i);
+            if (ch < '0' || ch > '9') {
+                throw new ParseException("\"" + ch + "\" is an invalid character in \"" + s + "\"", i);
+            }
+            value = value * 10 + (ch - '0');
+        }
+        return value;
+    }
+
+    private static void expect(String s, int index, char ch) throws ParseException {
+        if (s.charAt(index) != ch) {
+            throw new ParseException("Expected '" + ch + "' in \"" + s + "\"", index);
+        }
+    }
+
+    private static void put(char[] buf, int start, int value, int count) {
+        for (int i = start + count - 1; i >= start; i--) {
+            buf[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+    // Days since the epoch of a date in the proleptic Gregorian calendar.  The day may overflow the month.
+    private static long daysFromCivil(int year, int month, int day) {
+        int y = month <= 2 ? year - 1 : year;
+        int era = (y >= 0 ? y : y - 399) / 400;
+        int yoe = y - era * 400;
+        int doy = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        return era * 146097L + doe - 719468;
+    }
+
+    private static long localToUtc(long local) {
+        int offset = TIME_ZONE.getOffset(local - TIME_ZONE.getRawOffset());
+        return local - TIME_ZONE.getOffset(local - offset);
+    }
+}
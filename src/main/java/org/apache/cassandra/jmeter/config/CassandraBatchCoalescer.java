@@ -0,0 +1,138 @@
+package org.apache.cassandra.jmeter.config;
+/*
+ * Copyright 2014 Steven Lowenthal
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.cassandra.jmeter.AbstractCassandaTestElement;
+import org.apache.cassandra.jmeter.BatchCoalescer;
+import org.apache.jmeter.config.ConfigElement;
+import org.apache.jmeter.testbeans.TestBean;
+import org.apache.jmeter.testbeans.TestBeanHelper;
+import org.apache.jmeter.testelement.AbstractTestElement;
+import org.apache.jmeter.testelement.TestStateListener;
+
+/**
+ * Batch coalescer shared by all threads.  Samplers with the Coalesced Batch query type submit their
+ * statements to it by name, and each sample completes when the batch holding its statement is applied.
+ */
+public class CassandraBatchCoalescer extends AbstractTestElement
+    implements ConfigElement, TestStateListener, TestBean
+    {
+
+    private static final long serialVersionUID = 233L;
+
+    private static final long DEFAULT_LINGER = 10;
+
+    private transient String coalescerName, batchType;
+    private transient int batchSize = 1, batchBytes = 0;
+    private transient long batchLinger = DEFAULT_LINGER;
+
+    public CassandraBatchCoalescer() {
+    }
+
+    @SuppressWarnings("deprecation") // call to TestBeanHelper.prepare() is intentional
+    public void testStarted() {
+        this.setRunningVersion(true);
+        TestBeanHelper.prepare(this);
+        BatchCoalescer.register(new BatchCoalescer(coalescerName, AbstractCassandaTestElement.batchTypeOf(batchType),
+                batchSize, batchBytes, batchLinger));
+    }
+
+    public void testStarted(String host) {
+        testStarted();
+    }
+
+    public void testEnded() {
+        BatchCoalescer.unregister(coalescerName);
+    }
+
+    public void testEnded(String host) {
+        testEnded();
+    }
+
+    @Override
+    public Object clone() {
+        return (CassandraBatchCoalescer) super.clone();
+    }
+
+    public void addConfigElement(ConfigElement config) {
+    }
+
+    public boolean expectsModification() {
+        return false;
+    }
+
+    public String getCoalescerName() {
+        return coalescerName;
+    }
+
+    public void setCoalescerName(String coalescerName) {
+        this.coalescerName = coalescerName;
+    }
+
+    public String getBatchType() {
+        return batchType;
+    }
+
+    public void setBatchType(String batchType) {
+        this.batchType = batchType;
+    }
+
+    public String getBatchSize() {
+        return Integer.toString(batchSize);
+    }
+
+    public void setBatchSize(String batchSize) {
+        try {
+            this.batchSize = Integer.parseInt(batchSize);
+        } catch (NumberFormatException e) {
+            this.batchSize = 1;
+        }
+    }
+
+    public String getBatchBytes() {
+        return Integer.toString(batchBytes);
+    }
+
+    /**
+     * @param batchBytes size of bound values at which a batch is applied, or 0 (or blank) for no limit
+     */
+    public void setBatchBytes(String batchBytes) {
+        try {
+            this.batchBytes = Integer.parseInt(batchBytes);
+        } catch (NumberFormatException e) {
+            this.batchBytes = 0;
+        }
+    }
+
+    public String getBatchLinger() {
+        return Long.toString(batchLinger);
+    }
+
+    /**
+     * @param batchLinger milliseconds a partly filled batch may wait.  There must be a limit, as the
+     *                    samplers that submitted to it are waiting too.
+     */
+    public void setBatchLinger(String batchLinger) {
+        try {
+            this.batchLinger = Long.parseLong(batchLinger);
+        } catch (NumberFormatException e) {
+            this.batchLinger = DEFAULT_LINGER;
+        }
+        if (this.batchLinger <= 0) {
+            this.batchLinger = DEFAULT_LINGER;
+        }
+    }
+ }
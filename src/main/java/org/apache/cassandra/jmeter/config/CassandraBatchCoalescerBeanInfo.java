@@ -0,0 +1,56 @@
+package org.apache.cassandra.jmeter.config;
+/*
+ * Copyright 2014 Steven Lowenthal
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.cassandra.jmeter.AbstractCassandaTestElement;
+import org.apache.jmeter.testbeans.BeanInfoSupport;
+
+import java.beans.PropertyDescriptor;
+
+public class CassandraBatchCoalescerBeanInfo extends BeanInfoSupport {
+
+    public CassandraBatchCoalescerBeanInfo() {
+        super(CassandraBatchCoalescer.class);
+
+        createPropertyGroup("varName", new String[] { "coalescerName" });
+
+        createPropertyGroup("batch", new String[] { "batchType", "batchSize", "batchBytes", "batchLinger" });
+
+        PropertyDescriptor p = property("coalescerName");
+        p.setValue(NOT_UNDEFINED, Boolean.TRUE);
+        p.setValue(DEFAULT, "");
+
+        p = property("batchType"); // $NON-NLS-1$
+        p.setValue(NOT_UNDEFINED, Boolean.TRUE);
+        p.setValue(DEFAULT, AbstractCassandaTestElement.UNLOGGED);
+        p.setValue(NOT_OTHER,Boolean.TRUE);
+        p.setValue(TAGS,new String[]{
+                 AbstractCassandaTestElement.UNLOGGED,
+                 AbstractCassandaTestElement.LOGGED,
+                 AbstractCassandaTestElement.COUNTER
+        });
+
+        p = property("batchSize");
+        p.setValue(NOT_UNDEFINED, Boolean.TRUE);
+        p.setValue(DEFAULT, "100");
+        p = property("batchBytes");
+        p.setValue(NOT_UNDEFINED, Boolean.TRUE);
+        p.setValue(DEFAULT, "");
+        p = property("batchLinger");
+        p.setValue(NOT_UNDEFINED, Boolean.TRUE);
+        p.setValue(DEFAULT, "10");
+    }
+}
@@ -15,7 +15,14 @@ package org.apache.cassandra.jmeter.config;
  * limitations under the License.
  */
 
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.HostDistance;
+import com.datastax.driver.core.LatencyTracker;
+import com.datastax.driver.core.PerHostPercentileTracker;
+import com.datastax.driver.core.PoolingOptions;
+import com.datastax.driver.core.ProtocolOptions;
 import com.datastax.driver.core.Session;
+import com.datastax.driver.core.SocketOptions;
 import com.datastax.driver.core.policies.*;
 import org.apache.jmeter.config.ConfigElement;
 import org.apache.jmeter.testbeans.TestBean;
@@ -31,6 +38,7 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 public class CassandraConnection extends AbstractTestElement
     implements ConfigElement, TestStateListener, TestBean
@@ -43,11 +51,56 @@ public class CassandraConnection extends AbstractTestElement
     public static final String WHITELIST = "WhiteList";
     public static final String DEFAULTLOADBALANCER = "Default";
 
+    // Compression constants
+    public static final String NO_COMPRESSION = "None";
+    public static final String LZ4 = "LZ4";
+    public static final String SNAPPY = "Snappy";
+
+    // Transport constants
+    public static final String NIO = "NIO";
+    public static final String EPOLL = "Epoll";
+
+    // Speculative execution constants
+    public static final String NO_SPECULATIVE_EXECUTION = "None";
+    public static final String CONSTANT_SPECULATIVE_EXECUTION = "Constant Delay";
+    public static final String PERCENTILE_SPECULATIVE_EXECUTION = "Percentile";
+
+    private static final int DEFAULT_SPECULATIVE_DELAY = 100;
+    private static final double DEFAULT_SPECULATIVE_PERCENTILE = 99.0;
+    private static final int DEFAULT_MAX_SPECULATIVE_EXECUTIONS = 2;
+    // Highest latency the percentile tracker records
+    private static final long MAX_TRACKED_LATENCY = 15000;
+
     private static final Logger log = LoggingManager.getLoggerForClass();
 
     private static final long serialVersionUID = 233L;
 
-    private transient String contactPoints, keyspace, username, password, sessionName, loadBalancer, localDataCenter;
+    private transient String contactPoints, keyspace, username, password, sessionName, loadBalancer, localDataCenter, compression;
+
+    // Connection pool, for LOCAL and REMOTE hosts. Blank for the driver default
+    private transient String coreConnectionsLocal, maxConnectionsLocal, coreConnectionsRemote, maxConnectionsRemote,
+            maxRequestsPerConnectionLocal, maxRequestsPerConnectionRemote, newConnectionThresholdLocal, newConnectionThresholdRemote;
+
+    // Socket and transport settings. Blank for the driver default
+    private transient String connectTimeout, readTimeout, tcpNoDelay, keepAlive, sendBufferSize, receiveBufferSize,
+            transport, eventLoopThreads;
+
+    // Speculative executions, only for statements marked idempotent
+    private transient String speculativeExecution, speculativeDelay, speculativePercentile, maxSpeculativeExecutions;
+
+    // Token awareness around any policy
+    private transient boolean tokenAware, preferReplicaOrder;
+
+    // Latency aware load balancing. Blank for the driver defaults
+    private transient boolean latencyAware;
+    private transient String exclusionThreshold, latencyScale, retryPeriod, minimumMeasurements;
+    private transient LatencyAwarePolicy latencyAwarePolicy;
+
+    // Latency of each coordinator, logged at the end of the test
+    private transient CoordinatorLatencyTracker coordinatorLatencyTracker;
+
+    // Counts the bytes sent and received by the session
+    private transient CassandraNettyOptions nettyOptions;
 
     private final transient Set<InetAddress> contactPointsI = new HashSet<InetAddress>();
     private final transient Set<InetSocketAddress> contactPointsIS = new HashSet<InetSocketAddress>();
@@ -66,6 +119,18 @@ public class CassandraConnection extends AbstractTestElement
     }
 
     public void testEnded() {
+          if (nettyOptions != null) {
+              logBytes();
+              nettyOptions = null;
+          }
+          if (coordinatorLatencyTracker != null) {
+              log.info("Coordinator latencies for session " + sessionName + ":\n" + coordinatorLatencyTracker.summary());
+              coordinatorLatencyTracker = null;
+          }
+          if (latencyAwarePolicy != null) {
+              logLatencyScores();
+              latencyAwarePolicy = null;
+          }
           CassandraSessionFactory.destroyClusters();
     }
 
@@ -80,29 +145,242 @@ public class CassandraConnection extends AbstractTestElement
         JMeterVariables variables = getThreadContext().getVariables();
         LoadBalancingPolicy loadBalancingPolicy = null;
 
+        boolean token = tokenAware;
+
         if (loadBalancer.contentEquals(DC_AWARE_ROUND_ROBIN)) {
-            // in driver v2.0.2+, we can use the default constructor on
-            // dcawareroundrobinpolicy
-            if (localDataCenter.isEmpty()) {
-                loadBalancingPolicy = new DCAwareRoundRobinPolicy();
-            }   else {
-                loadBalancingPolicy = new DCAwareRoundRobinPolicy(localDataCenter);
-            }
+            loadBalancingPolicy = newDCAwareRoundRobinPolicy();
         } else if (loadBalancer.contentEquals(WHITELIST)) {
             loadBalancingPolicy = new WhiteListPolicy(new RoundRobinPolicy(), contactPointsIS);
         } else if (loadBalancer.contentEquals(ROUND_ROBIN)) {
             loadBalancingPolicy = new RoundRobinPolicy();
         } else if (loadBalancer.contentEquals(DC_TOKEN_AWARE)) {
-            loadBalancingPolicy = new TokenAwarePolicy(new DCAwareRoundRobinPolicy());
+            loadBalancingPolicy = newDCAwareRoundRobinPolicy();
+            token = true;
         } else if (loadBalancer.contentEquals(DEFAULTLOADBALANCER)) {
             loadBalancingPolicy = null;
         }
+        if (loadBalancingPolicy == null && (latencyAware || token || preferReplicaOrder)) {
+            // Spell out the driver default, TokenAware(DCAwareRoundRobin), so that it can be changed
+            loadBalancingPolicy = newDCAwareRoundRobinPolicy();
+            token = true;
+        }
+        if (latencyAware) {
+            loadBalancingPolicy = buildLatencyAwarePolicy(loadBalancingPolicy);
+        }
+        if (token) {
+            // Outermost, so that a request goes to a replica whatever the rest of the policy says
+            loadBalancingPolicy = new TokenAwarePolicy(loadBalancingPolicy, !preferReplicaOrder);
+        }
+
+        ProtocolOptions.Compression protocolCompression = null;
+        if (LZ4.equals(compression)) {
+            protocolCompression = ProtocolOptions.Compression.LZ4;
+        } else if (SNAPPY.equals(compression)) {
+            protocolCompression = ProtocolOptions.Compression.SNAPPY;
+        }
+        Integer threads = parseOption(eventLoopThreads);
+        nettyOptions = new CassandraNettyOptions(EPOLL.equals(transport), threads == null ? 0 : threads);
 
-        Session session = CassandraSessionFactory.createSession(sessionName, contactPointsI, keyspace, username, password, loadBalancingPolicy);
+        List<LatencyTracker> latencyTrackers = new ArrayList<LatencyTracker>();
+        coordinatorLatencyTracker = new CoordinatorLatencyTracker();
+        latencyTrackers.add(coordinatorLatencyTracker);
+        SpeculativeExecutionPolicy speculativeExecutionPolicy = getSpeculativeExecutionPolicy(latencyTrackers);
+
+        Session session = CassandraSessionFactory.createSession(sessionName, contactPointsI, keyspace, username, password, loadBalancingPolicy,
+                getPoolingOptions(), protocolCompression, nettyOptions, getSocketOptions(), speculativeExecutionPolicy, latencyTrackers);
+        logPool(session.getCluster().getConfiguration().getPoolingOptions());
 
         variables.putObject(sessionName, session);
     }
 
+    private DCAwareRoundRobinPolicy newDCAwareRoundRobinPolicy() {
+        // in driver v2.0.2+, we can use the default constructor on
+        // dcawareroundrobinpolicy
+        if (localDataCenter == null || localDataCenter.isEmpty()) {
+            return new DCAwareRoundRobinPolicy();
+        }
+        return new DCAwareRoundRobinPolicy(localDataCenter);
+    }
+
+    /**
+     * Wrap the policy so that hosts much slower than the fastest are avoided.  Token awareness is
+     * added around this, so a request still goes to the fastest replica.
+     */
+    private LatencyAwarePolicy buildLatencyAwarePolicy(LoadBalancingPolicy childPolicy) {
+        LatencyAwarePolicy.Builder builder = LatencyAwarePolicy.builder(childPolicy);
+        if (exclusionThreshold != null && !exclusionThreshold.trim().isEmpty()) {
+            try {
+                builder.withExclusionThreshold(Double.parseDouble(exclusionThreshold.trim()));
+            } catch (NumberFormatException e) {
+                log.warn("Ignoring invalid exclusion threshold " + exclusionThreshold + ", using the driver default");
+            }
+        }
+        Integer value = parseOption(latencyScale);
+        if (value != null) {
+            builder.withScale(value, TimeUnit.MILLISECONDS);
+        }
+        value = parseOption(retryPeriod);
+        if (value != null) {
+            builder.withRetryPeriod(value, TimeUnit.MILLISECONDS);
+        }
+        value = parseOption(minimumMeasurements);
+        if (value != null) {
+            builder.withMininumMeasurements(value);
+        }
+        latencyAwarePolicy = builder.build();
+        return latencyAwarePolicy;
+    }
+
+    private void logLatencyScores() {
+        StringBuilder sb = new StringBuilder("Latency scores for session ").append(sessionName).append(":");
+        for (Map.Entry<Host, LatencyAwarePolicy.Snapshot.Stats> entry : latencyAwarePolicy.getScoresSnapshot().getAllStats().entrySet()) {
+            sb.append(" ").append(entry.getKey().getAddress().getHostAddress())
+                    .append("=").append(TimeUnit.NANOSECONDS.toMicros(entry.getValue().getLatencyScore())).append("us")
+                    .append(" (").append(entry.getValue().getMeasurementsCount()).append(" measurements)");
+        }
+        log.info(sb.toString());
+    }
+
+    /**
+     * @param latencyTrackers gets any tracker the policy needs registered with the cluster
+     * @return the policy, counting the speculative executions of each statement, or <code>null</code> for none
+     */
+    private SpeculativeExecutionPolicy getSpeculativeExecutionPolicy(List<LatencyTracker> latencyTrackers) {
+        Integer max = parseOption(maxSpeculativeExecutions);
+        int maxExecutions = max == null ? DEFAULT_MAX_SPECULATIVE_EXECUTIONS : max;
+        SpeculativeExecutionPolicy policy;
+        if (CONSTANT_SPECULATIVE_EXECUTION.equals(speculativeExecution)) {
+            Integer delay = parseOption(speculativeDelay);
+            policy = new ConstantSpeculativeExecutionPolicy(delay == null ? DEFAULT_SPECULATIVE_DELAY : delay, maxExecutions);
+        } else if (PERCENTILE_SPECULATIVE_EXECUTION.equals(speculativeExecution)) {
+            double percentile = DEFAULT_SPECULATIVE_PERCENTILE;
+            if (speculativePercentile != null && !speculativePercentile.trim().isEmpty()) {
+                try {
+                    percentile = Double.parseDouble(speculativePercentile.trim());
+                } catch (NumberFormatException e) {
+                    log.warn("Ignoring invalid percentile " + speculativePercentile + ", using " + percentile);
+                }
+            }
+            PerHostPercentileTracker tracker = PerHostPercentileTracker.builderWithHighestTrackableLatencyMillis(MAX_TRACKED_LATENCY).build();
+            latencyTrackers.add(tracker);
+            policy = new PercentileSpeculativeExecutionPolicy(tracker, percentile, maxExecutions);
+        } else {
+            return null;
+        }
+        return new CountingSpeculativeExecutionPolicy(policy);
+    }
+
+    private SocketOptions getSocketOptions() {
+        SocketOptions socketOptions = new SocketOptions();
+        Integer value = parseOption(connectTimeout);
+        if (value != null) {
+            socketOptions.setConnectTimeoutMillis(value);
+        }
+        value = parseOption(readTimeout);
+        if (value != null) {
+            socketOptions.setReadTimeoutMillis(value);
+        }
+        value = parseOption(sendBufferSize);
+        if (value != null) {
+            socketOptions.setSendBufferSize(value);
+        }
+        value = parseOption(receiveBufferSize);
+        if (value != null) {
+            socketOptions.setReceiveBufferSize(value);
+        }
+        if (tcpNoDelay != null && !tcpNoDelay.trim().isEmpty()) {
+            socketOptions.setTcpNoDelay(Boolean.parseBoolean(tcpNoDelay.trim()));
+        }
+        if (keepAlive != null && !keepAlive.trim().isEmpty()) {
+            socketOptions.setKeepAlive(Boolean.parseBoolean(keepAlive.trim()));
+        }
+        return socketOptions;
+    }
+
+    private void logBytes() {
+        StringBuilder sb = new StringBuilder("Session ").append(sessionName)
+                .append(" (compression ").append(compression == null ? NO_COMPRESSION : compression).append(")")
+                .append(" sent ").append(nettyOptions.getWireBytesSent()).append(" bytes");
+        if (nettyOptions.getFrameBytesSent() > 0) {
+            sb.append(" for ").append(nettyOptions.getFrameBytesSent()).append(" uncompressed");
+        }
+        sb.append(", received ").append(nettyOptions.getWireBytesReceived()).append(" bytes");
+        if (nettyOptions.getFrameBytesReceived() > 0) {
+            sb.append(" for ").append(nettyOptions.getFrameBytesReceived()).append(" uncompressed");
+        }
+        log.info(sb.toString());
+    }
+
+    private PoolingOptions getPoolingOptions() {
+        PoolingOptions poolingOptions = new PoolingOptions();
+        setPoolSize(poolingOptions, HostDistance.LOCAL, coreConnectionsLocal, maxConnectionsLocal);
+        setPoolSize(poolingOptions, HostDistance.REMOTE, coreConnectionsRemote, maxConnectionsRemote);
+
+        Integer value = parseOption(maxRequestsPerConnectionLocal);
+        if (value != null) {
+            poolingOptions.setMaxRequestsPerConnection(HostDistance.LOCAL, value);
+        }
+        value = parseOption(maxRequestsPerConnectionRemote);
+        if (value != null) {
+            poolingOptions.setMaxRequestsPerConnection(HostDistance.REMOTE, value);
+        }
+        value = parseOption(newConnectionThresholdLocal);
+        if (value != null) {
+            poolingOptions.setNewConnectionThreshold(HostDistance.LOCAL, value);
+        }
+        value = parseOption(newConnectionThresholdRemote);
+        if (value != null) {
+            poolingOptions.setNewConnectionThreshold(HostDistance.REMOTE, value);
+        }
+        return poolingOptions;
+    }
+
+    /**
+     * Set the pool size, filling in the other bound when only one is given.  The driver only fills
+     * in its defaults for the protocol version once it has connected, and fails then if core &gt; max,
+     * so with only Core, Max is raised to Core, and with only Max, Core is 1 (the protocol v3 default).
+     */
+    private static void setPoolSize(PoolingOptions poolingOptions, HostDistance distance, String core, String max) {
+        Integer coreConnections = parseOption(core);
+        Integer maxConnections = parseOption(max);
+        if (coreConnections != null && maxConnections != null) {
+            poolingOptions.setConnectionsPerHost(distance, coreConnections, maxConnections);
+        } else if (coreConnections != null) {
+            poolingOptions.setConnectionsPerHost(distance, coreConnections, coreConnections);
+        } else if (maxConnections != null) {
+            poolingOptions.setConnectionsPerHost(distance, Math.min(1, maxConnections), maxConnections);
+        }
+    }
+
+    /**
+     * Log the pool settings in use, read back once the driver has filled in its defaults
+     */
+    private void logPool(PoolingOptions poolingOptions) {
+        log.info("Connection pool for " + sessionName + " - local: " + describePool(poolingOptions, HostDistance.LOCAL)
+                + ", remote: " + describePool(poolingOptions, HostDistance.REMOTE));
+    }
+
+    private static String describePool(PoolingOptions poolingOptions, HostDistance distance) {
+        return poolingOptions.getCoreConnectionsPerHost(distance) + "-" + poolingOptions.getMaxConnectionsPerHost(distance)
+                + " connections, " + poolingOptions.getMaxRequestsPerConnection(distance) + " requests per connection, new connection at "
+                + poolingOptions.getNewConnectionThreshold(distance);
+    }
+
+    /**
+     * @return the option as a number, or <code>null</code> if it's blank to use the driver default
+     */
+    static Integer parseOption(String option) {
+        if (option == null || option.trim().isEmpty()) {
+            return null;
+        }
+        try {
+            return Integer.valueOf(option.trim());
+        } catch (NumberFormatException e) {
+            log.warn("Ignoring invalid number " + option + ", using the driver default");
+            return null;
+        }
+    }
+
     public void testStarted(String host) {
         testStarted();
     }
@@ -229,4 +507,233 @@ public class CassandraConnection extends AbstractTestElement
     public void setLocalDataCenter(String localDataCenter) {
         this.localDataCenter = localDataCenter;
     }
+
+    public String getCoreConnectionsLocal() {
+        return coreConnectionsLocal;
+    }
+
+    public void setCoreConnectionsLocal(String coreConnectionsLocal) {
+        this.coreConnectionsLocal = coreConnectionsLocal;
+    }
+
+    public String getMaxConnectionsLocal() {
+        return maxConnectionsLocal;
+    }
+
+    public void setMaxConnectionsLocal(String maxConnectionsLocal) {
+        this.maxConnectionsLocal = maxConnectionsLocal;
+    }
+
+    public String getCoreConnectionsRemote() {
+        return coreConnectionsRemote;
+    }
+
+    public void setCoreConnectionsRemote(String coreConnectionsRemote) {
+        this.coreConnectionsRemote = coreConnectionsRemote;
+    }
+
+    public String getMaxConnectionsRemote() {
+        return maxConnectionsRemote;
+    }
+
+    public void setMaxConnectionsRemote(String maxConnectionsRemote) {
+        this.maxConnectionsRemote = maxConnectionsRemote;
+    }
+
+    public String getMaxRequestsPerConnectionLocal() {
+        return maxRequestsPerConnectionLocal;
+    }
+
+    public void setMaxRequestsPerConnectionLocal(String maxRequestsPerConnectionLocal) {
+        this.maxRequestsPerConnectionLocal = maxRequestsPerConnectionLocal;
+    }
+
+    public String getMaxRequestsPerConnectionRemote() {
+        return maxRequestsPerConnectionRemote;
+    }
+
+    public void setMaxRequestsPerConnectionRemote(String maxRequestsPerConnectionRemote) {
+        this.maxRequestsPerConnectionRemote = maxRequestsPerConnectionRemote;
+    }
+
+    public String getNewConnectionThresholdLocal() {
+        return newConnectionThresholdLocal;
+    }
+
+    public void setNewConnectionThresholdLocal(String newConnectionThresholdLocal) {
+        this.newConnectionThresholdLocal = newConnectionThresholdLocal;
+    }
+
+    public String getNewConnectionThresholdRemote() {
+        return newConnectionThresholdRemote;
+    }
+
+    public void setNewConnectionThresholdRemote(String newConnectionThresholdRemote) {
+        this.newConnectionThresholdRemote = newConnectionThresholdRemote;
+    }
+
+    public String getCompression() {
+        return compression;
+    }
+
+    public void setCompression(String compression) {
+        this.compression = compression;
+    }
+
+    public String getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    public void setConnectTimeout(String connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    public String getReadTimeout() {
+        return readTimeout;
+    }
+
+    public void setReadTimeout(String readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
+    public String getTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    public void setTcpNoDelay(String tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+    }
+
+    public String getKeepAlive() {
+        return keepAlive;
+    }
+
+    public void setKeepAlive(String keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    public String getSendBufferSize() {
+        return sendBufferSize;
+    }
+
+    public void setSendBufferSize(String sendBufferSize) {
+        this.sendBufferSize = sendBufferSize;
+    }
+
+    public String getReceiveBufferSize() {
+        return receiveBufferSize;
+    }
+
+    public void setReceiveBufferSize(String receiveBufferSize) {
+        this.receiveBufferSize = receiveBufferSize;
+    }
+
+    public String getTransport() {
+        return transport;
+    }
+
+    public void setTransport(String transport) {
+        this.transport = transport;
+    }
+
+    public String getEventLoopThreads() {
+        return eventLoopThreads;
+    }
+
+    public void setEventLoopThreads(String eventLoopThreads) {
+        this.eventLoopThreads = eventLoopThreads;
+    }
+
+    public String getSpeculativeExecution() {
+        return speculativeExecution;
+    }
+
+    public void setSpeculativeExecution(String speculativeExecution) {
+        this.speculativeExecution = speculativeExecution;
+    }
+
+    public String getSpeculativeDelay() {
+        return speculativeDelay;
+    }
+
+    public void setSpeculativeDelay(String speculativeDelay) {
+        this.speculativeDelay = speculativeDelay;
+    }
+
+    public String getSpeculativePercentile() {
+        return speculativePercentile;
+    }
+
+    public void setSpeculativePercentile(String speculativePercentile) {
+        this.speculativePercentile = speculativePercentile;
+    }
+
+    public String getMaxSpeculativeExecutions() {
+        return maxSpeculativeExecutions;
+    }
+
+    public void setMaxSpeculativeExecutions(String maxSpeculativeExecutions) {
+        this.maxSpeculativeExecutions = maxSpeculativeExecutions;
+    }
+
+    public boolean isLatencyAware() {
+        return latencyAware;
+    }
+
+    public void setLatencyAware(boolean latencyAware) {
+        this.latencyAware = latencyAware;
+    }
+
+    public String getExclusionThreshold() {
+        return exclusionThreshold;
+    }
+
+    public void setExclusionThreshold(String exclusionThreshold) {
+        this.exclusionThreshold = exclusionThreshold;
+    }
+
+    public String getLatencyScale() {
+        return latencyScale;
+    }
+
+    public void setLatencyScale(String latencyScale) {
+        this.latencyScale = latencyScale;
+    }
+
+    public String getRetryPeriod() {
+        return retryPeriod;
+    }
+
+    public void setRetryPeriod(String retryPeriod) {
+        this.retryPeriod = retryPeriod;
+    }
+
+    public String getMinimumMeasurements() {
+        return minimumMeasurements;
+    }
+
+    public void setMinimumMeasurements(String minimumMeasurements) {
+        this.minimumMeasurements = minimumMeasurements;
+    }
+
+    public boolean isTokenAware() {
+        return tokenAware;
+    }
+
+    public void setTokenAware(boolean tokenAware) {
+        this.tokenAware = tokenAware;
+    }
+
+    public boolean isPreferReplicaOrder() {
+        return preferReplicaOrder;
+    }
+
+    /**
+     * @param preferReplicaOrder with token awareness, try the replicas in the child policy's order rather
+     *                           than shuffled, as the driver does by default.  False, the default, for plans
+     *                           saved before this setting.
+     */
+    public void setPreferReplicaOrder(boolean preferReplicaOrder) {
+        this.preferReplicaOrder = preferReplicaOrder;
+    }
  }
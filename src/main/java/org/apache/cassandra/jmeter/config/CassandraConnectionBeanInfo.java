@@ -30,9 +30,22 @@ public class CassandraConnectionBeanInfo extends BeanInfoSupport {
     
         createPropertyGroup("varName", new String[] { "sessionName" });
 
-        createPropertyGroup("cluster", new String[] { "contactPoints", "keyspace", "username", "password" });
+        createPropertyGroup("cluster", new String[] { "contactPoints", "keyspace", "username", "password", "compression" });
 
-        createPropertyGroup("loadbalancergroup", new String[] { "loadBalancer", "localDataCenter" });
+        createPropertyGroup("loadbalancergroup", new String[] { "loadBalancer", "localDataCenter",
+                "tokenAware", "preferReplicaOrder",
+                "latencyAware", "exclusionThreshold", "latencyScale", "retryPeriod", "minimumMeasurements" });
+
+        createPropertyGroup("pooling", new String[] {
+                "coreConnectionsLocal", "maxConnectionsLocal", "maxRequestsPerConnectionLocal", "newConnectionThresholdLocal",
+                "coreConnectionsRemote", "maxConnectionsRemote", "maxRequestsPerConnectionRemote", "newConnectionThresholdRemote" });
+
+        createPropertyGroup("speculative", new String[] {
+                "speculativeExecution", "speculativeDelay", "speculativePercentile", "maxSpeculativeExecutions" });
+
+        createPropertyGroup("socket", new String[] {
+                "connectTimeout", "readTimeout", "tcpNoDelay", "keepAlive", "sendBufferSize", "receiveBufferSize",
+                "transport", "eventLoopThreads" });
 
         PropertyDescriptor p = property("contactPoints");
         p.setValue(NOT_UNDEFINED, Boolean.TRUE);
@@ -50,6 +63,16 @@ public class CassandraConnectionBeanInfo extends BeanInfoSupport {
         p.setValue(NOT_UNDEFINED, Boolean.TRUE);
         p.setValue(DEFAULT, "");
 
+        p = property("compression"); // $NON-NLS-1$
+        p.setValue(NOT_UNDEFINED, Boolean.TRUE);
+        p.setValue(DEFAULT, CassandraConnection.NO_COMPRESSION);
+        p.setValue(NOT_OTHER,Boolean.TRUE);
+        p.setValue(TAGS,new String[]{
+                 CassandraConnection.NO_COMPRESSION,
+                 CassandraConnection.LZ4,
+                 CassandraConnection.SNAPPY
+        });
+
         p = property("loadBalancer"); // $NON-NLS-1$
         p.setValue(NOT_UNDEFINED, Boolean.TRUE);
         p.setValue(DEFAULT, CassandraConnection.DEFAULTLOADBALANCER);
@@ -65,5 +88,64 @@ public class CassandraConnectionBeanInfo extends BeanInfoSupport {
         p = property("localDataCenter");
         p.setValue(NOT_UNDEFINED, Boolean.TRUE);
         p.setValue(DEFAULT, "");
+
+        p = property("tokenAware");
+        p.setValue(NOT_UNDEFINED, Boolean.TRUE);
+        p.setValue(DEFAULT, Boolean.FALSE);
+
+        p = property("preferReplicaOrder");
+        p.setValue(NOT_UNDEFINED, Boolean.TRUE);
+        p.setValue(DEFAULT, Boolean.FALSE);
+
+        p = property("latencyAware");
+        p.setValue(NOT_UNDEFINED, Boolean.TRUE);
+        p.setValue(DEFAULT, Boolean.FALSE);
+
+        for (String latency : new String[] { "exclusionThreshold", "latencyScale", "retryPeriod", "minimumMeasurements" }) {
+            p = property(latency);
+            p.setValue(NOT_UNDEFINED, Boolean.TRUE);
+            p.setValue(DEFAULT, "");
+        }
+
+        for (String pooling : new String[] {
+                "coreConnectionsLocal", "maxConnectionsLocal", "maxRequestsPerConnectionLocal", "newConnectionThresholdLocal",
+                "coreConnectionsRemote", "maxConnectionsRemote", "maxRequestsPerConnectionRemote", "newConnectionThresholdRemote" }) {
+            p = property(pooling);
+            p.setValue(NOT_UNDEFINED, Boolean.TRUE);
+            p.setValue(DEFAULT, "");
+        }
+
+        for (String socket : new String[] {
+                "connectTimeout", "readTimeout", "tcpNoDelay", "keepAlive", "sendBufferSize", "receiveBufferSize",
+                "eventLoopThreads" }) {
+            p = property(socket);
+            p.setValue(NOT_UNDEFINED, Boolean.TRUE);
+            p.setValue(DEFAULT, "");
+        }
+
+        p = property("speculativeExecution"); // $NON-NLS-1$
+        p.setValue(NOT_UNDEFINED, Boolean.TRUE);
+        p.setValue(DEFAULT, CassandraConnection.NO_SPECULATIVE_EXECUTION);
+        p.setValue(NOT_OTHER,Boolean.TRUE);
+        p.setValue(TAGS,new String[]{
+                 CassandraConnection.NO_SPECULATIVE_EXECUTION,
+                 CassandraConnection.CONSTANT_SPECULATIVE_EXECUTION,
+                 CassandraConnection.PERCENTILE_SPECULATIVE_EXECUTION
+        });
+
+        for (String speculative : new String[] { "speculativeDelay", "speculativePercentile", "maxSpeculativeExecutions" }) {
+            p = property(speculative);
+            p.setValue(NOT_UNDEFINED, Boolean.TRUE);
+            p.setValue(DEFAULT, "");
+        }
+
+        p = property("transport"); // $NON-NLS-1$
+        p.setValue(NOT_UNDEFINED, Boolean.TRUE);
+        p.setValue(DEFAULT, CassandraConnection.NIO);
+        p.setValue(NOT_OTHER,Boolean.TRUE);
+        p.setValue(TAGS,new String[]{
+                 CassandraConnection.NIO,
+                 CassandraConnection.EPOLL
+        });
     }
 }
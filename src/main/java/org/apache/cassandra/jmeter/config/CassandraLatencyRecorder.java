@@ -0,0 +1,127 @@
+package org.apache.cassandra.jmeter.config;
+/*
+ * Copyright 2014 Steven Lowenthal
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.cassandra.jmeter.LatencyRecorder;
+import org.apache.jmeter.config.ConfigElement;
+import org.apache.jmeter.testbeans.TestBean;
+import org.apache.jmeter.testbeans.TestBeanHelper;
+import org.apache.jmeter.testelement.AbstractTestElement;
+import org.apache.jmeter.testelement.TestStateListener;
+
+import java.io.File;
+
+/**
+ * Records the latency of every execution of the Cassandra test elements into HdrHistograms, by
+ * element name, and writes them to interval histogram logs.  This gives accurate percentiles at
+ * rates where JMeter's listeners can't keep up.
+ */
+public class CassandraLatencyRecorder extends AbstractTestElement
+    implements ConfigElement, TestStateListener, TestBean
+    {
+
+    private static final long serialVersionUID = 233L;
+
+    private static final long DEFAULT_INTERVAL = 1000;
+    private static final int DEFAULT_DIGITS = 3;
+
+    private transient String logDirectory;
+    private transient long logInterval = DEFAULT_INTERVAL;
+    private transient int significantDigits = DEFAULT_DIGITS;
+
+    public CassandraLatencyRecorder() {
+    }
+
+    @SuppressWarnings("deprecation") // call to TestBeanHelper.prepare() is intentional
+    public void testStarted() {
+        this.setRunningVersion(true);
+        TestBeanHelper.prepare(this);
+        File directory = new File(logDirectory == null || logDirectory.trim().length() == 0 ? "." : logDirectory.trim()); // $NON-NLS-1$
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalArgumentException("Could not create latency log directory " + directory);
+        }
+        LatencyRecorder.register(new LatencyRecorder(directory, logInterval, significantDigits));
+    }
+
+    public void testStarted(String host) {
+        testStarted();
+    }
+
+    public void testEnded() {
+        LatencyRecorder.unregister();
+    }
+
+    public void testEnded(String host) {
+        testEnded();
+    }
+
+    @Override
+    public Object clone() {
+        return (CassandraLatencyRecorder) super.clone();
+    }
+
+    public void addConfigElement(ConfigElement config) {
+    }
+
+    public boolean expectsModification() {
+        return false;
+    }
+
+    public String getLogDirectory() {
+        return logDirectory;
+    }
+
+    public void setLogDirectory(String logDirectory) {
+        this.logDirectory = logDirectory;
+    }
+
+    public String getLogInterval() {
+        return Long.toString(logInterval);
+    }
+
+    /**
+     * @param logInterval milliseconds between merges of the threads' histograms, which is the
+     *                    length of each interval in the logs
+     */
+    public void setLogInterval(String logInterval) {
+        try {
+            this.logInterval = Long.parseLong(logInterval);
+        } catch (NumberFormatException e) {
+            this.logInterval = DEFAULT_INTERVAL;
+        }
+        if (this.logInterval <= 0) {
+            this.logInterval = DEFAULT_INTERVAL;
+        }
+    }
+
+    public String getSignificantDigits() {
+        return Integer.toString(significantDigits);
+    }
+
+    /**
+     * @param significantDigits precision of the histograms, from 0 to 5
+     */
+    public void setSignificantDigits(String significantDigits) {
+        try {
+            this.significantDigits = Integer.parseInt(significantDigits);
+        } catch (NumberFormatException e) {
+            this.significantDigits = DEFAULT_DIGITS;
+        }
+        if (this.significantDigits < 0 || this.significantDigits > 5) {
+            this.significantDigits = DEFAULT_DIGITS;
+        }
+    }
+ }
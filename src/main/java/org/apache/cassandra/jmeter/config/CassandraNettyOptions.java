@@ -0,0 +1,169 @@
+package org.apache.cassandra.jmeter.config;
+/*
+ * Copyright 2014 Steven Lowenthal
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.datastax.driver.core.NettyOptions;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Netty settings for a cluster - the transport and the number of event loop threads.  Also counts
+ * the bytes sent and received on the wire, and the size of the same frames before compression, so
+ * the effect of compression can be reported.
+ */
+public class CassandraNettyOptions extends NettyOptions {
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    // Handler of the driver that frames are decoded by, before frames become messages
+    private static final String MESSAGE_DECODER = "messageDecoder"; // $NON-NLS-1$
+
+    // The driver's Frame class isn't public, so its body is read by reflection
+    private static final Field FRAME_BODY = frameBody();
+
+    private final ByteCounter wire = new ByteCounter();
+    private final ByteCounter frames = new ByteCounter();
+
+    private final boolean epoll;
+    private final int eventLoopThreads;
+
+    /**
+     * @param epoll whether to use the epoll transport rather than NIO
+     * @param eventLoopThreads number of event loop threads, or 0 for the Netty default (twice the cores)
+     */
+    public CassandraNettyOptions(boolean epoll, int eventLoopThreads) {
+        this.epoll = epoll && isEpollUsable();
+        this.eventLoopThreads = eventLoopThreads;
+    }
+
+    /**
+     * The driver picks epoll by itself whenever it's on the classpath, which fails on JVMs where
+     * Netty can't allocate native memory - so only use it when asked, and check it really works.
+     */
+    private static boolean isEpollUsable() {
+        if (!Epoll.isAvailable()) {
+            log.warn("The epoll transport is not available, using NIO: " + Epoll.unavailabilityCause());
+            return false;
+        }
+        try {
+            new EpollEventLoopGroup(1).shutdownGracefully();
+            return true;
+        } catch (Throwable t) {
+            log.warn("The epoll transport can't be used, using NIO: " + t);
+            return false;
+        }
+    }
+
+    @Override
+    public EventLoopGroup eventLoopGroup(ThreadFactory threadFactory) {
+        return epoll ? new EpollEventLoopGroup(eventLoopThreads, threadFactory)
+                : new NioEventLoopGroup(eventLoopThreads, threadFactory);
+    }
+
+    @Override
+    public Class<? extends SocketChannel> channelClass() {
+        return epoll ? EpollSocketChannel.class : NioSocketChannel.class;
+    }
+
+    @Override
+    public void afterChannelInitialized(SocketChannel channel) throws Exception {
+        ChannelPipeline pipeline = channel.pipeline();
+        pipeline.addFirst("wireBytes", wire); // $NON-NLS-1$
+        if (FRAME_BODY != null && pipeline.get(MESSAGE_DECODER) != null) {
+            // Inbound this comes after decompression, and outbound before compression
+            pipeline.addBefore(MESSAGE_DECODER, "frameBytes", frames); // $NON-NLS-1$
+        }
+    }
+
+    public long getWireBytesSent() {
+        return wire.written.get();
+    }
+
+    public long getWireBytesReceived() {
+        return wire.read.get();
+    }
+
+    /**
+     * @return the size of the frame bodies sent, before compression, or 0 if they can't be counted
+     */
+    public long getFrameBytesSent() {
+        return frames.written.get();
+    }
+
+    /**
+     * @return the size of the frame bodies received, after decompression, or 0 if they can't be counted
+     */
+    public long getFrameBytesReceived() {
+        return frames.read.get();
+    }
+
+    private static Field frameBody() {
+        try {
+            Field body = Class.forName("com.datastax.driver.core.Frame").getField("body"); // $NON-NLS-1$ $NON-NLS-2$
+            body.setAccessible(true);
+            return body;
+        } catch (Exception e) {
+            log.warn("Can't count uncompressed bytes with this driver: " + e);
+            return null;
+        }
+    }
+
+    private static int size(Object msg) {
+        if (msg instanceof ByteBuf) {
+            return ((ByteBuf) msg).readableBytes();
+        }
+        try {
+            Object body = FRAME_BODY.get(msg);
+            return body instanceof ByteBuf ? ((ByteBuf) body).readableBytes() : 0;
+        } catch (Exception e) {
+            return 0;
+        }
+    }
+
+    @ChannelHandler.Sharable
+    private static final class ByteCounter extends ChannelDuplexHandler {
+        private final AtomicLong read = new AtomicLong();
+        private final AtomicLong written = new AtomicLong();
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            read.addAndGet(size(msg));
+            ctx.fireChannelRead(msg);
+        }
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+            written.addAndGet(size(msg));
+            ctx.write(msg, promise);
+        }
+    }
+}
@@ -17,16 +17,23 @@ package org.apache.cassandra.jmeter.config;
  */
 
 import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.LatencyTracker;
+import com.datastax.driver.core.NettyOptions;
+import com.datastax.driver.core.PoolingOptions;
+import com.datastax.driver.core.ProtocolOptions;
 import com.datastax.driver.core.QueryOptions;
 import com.datastax.driver.core.Session;
 import com.datastax.driver.core.SocketOptions;
 import com.datastax.driver.core.policies.ConstantReconnectionPolicy;
 import com.datastax.driver.core.policies.LoadBalancingPolicy;
+import com.datastax.driver.core.policies.SpeculativeExecutionPolicy;
 
 import java.net.InetAddress;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 
 public class CassandraSessionFactory {
 
@@ -53,7 +60,14 @@ public class CassandraSessionFactory {
     return instance;
   }
 
-  public static synchronized Session createSession(String sessionKey, Set<InetAddress> host, String keyspace, String username, String password, LoadBalancingPolicy loadBalancingPolicy) {
+  public static Session createSession(String sessionKey, Set<InetAddress> host, String keyspace, String username, String password, LoadBalancingPolicy loadBalancingPolicy) {
+    return createSession(sessionKey, host, keyspace, username, password, loadBalancingPolicy, null, null, null, null, null, null);
+  }
+
+  public static synchronized Session createSession(String sessionKey, Set<InetAddress> host, String keyspace, String username, String password, LoadBalancingPolicy loadBalancingPolicy,
+                                                   PoolingOptions poolingOptions, ProtocolOptions.Compression compression, NettyOptions nettyOptions,
+                                                   SocketOptions socketOptions, SpeculativeExecutionPolicy speculativeExecutionPolicy,
+                                                   List<LatencyTracker> latencyTrackers) {
 
     instance = getInstance();
     Session session = instance.sessions.get(sessionKey);
@@ -67,12 +81,38 @@ public class CassandraSessionFactory {
               cb = cb.withLoadBalancingPolicy(loadBalancingPolicy);
           }
 
+          if (poolingOptions != null) {
+              cb = cb.withPoolingOptions(poolingOptions);
+          }
+
+          if (compression != null) {
+              cb = cb.withCompression(compression);
+          }
+
+          if (nettyOptions != null) {
+              cb = cb.withNettyOptions(nettyOptions);
+          }
+
+          if (socketOptions != null) {
+              cb = cb.withSocketOptions(socketOptions);
+          }
+
+          if (speculativeExecutionPolicy != null) {
+              cb = cb.withSpeculativeExecutionPolicy(speculativeExecutionPolicy);
+          }
+
           if ( username != null && ! username.isEmpty()) {
               cb = cb.withCredentials(username, password);
           }
 
           Cluster cluster = cb.build();
 
+          if (latencyTrackers != null) {
+              for (LatencyTracker latencyTracker : latencyTrackers) {
+                  cluster.register(latencyTracker);
+              }
+          }
+
 
           if (keyspace != null && !keyspace.isEmpty())
         session = cluster.connect(keyspace);
@@ -84,6 +124,13 @@ public class CassandraSessionFactory {
     return session;
   }
 
+  /**
+   * @return the open sessions, by name
+   */
+  public static synchronized Map<String, Session> getSessions() {
+      return new TreeMap<String, Session>(getInstance().sessions);
+  }
+
   public static synchronized void destroyClusters() {
       for (Session session : instance.sessions.values()) {
           Cluster cluster = session.getCluster();
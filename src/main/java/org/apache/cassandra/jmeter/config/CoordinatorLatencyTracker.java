@@ -0,0 +1,85 @@
+package org.apache.cassandra.jmeter.config;
+/*
+ * Copyright 2014 Steven Lowenthal
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.LatencyTracker;
+import com.datastax.driver.core.Statement;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records the latency of every request the driver sends, by the host that coordinated it, so
+ * that a slow node stands out.  Each attempt on a host counts, including retries and speculative
+ * executions.
+ */
+public class CoordinatorLatencyTracker implements LatencyTracker {
+
+    private final ConcurrentMap<Host, HostLatency> hosts = new ConcurrentHashMap<Host, HostLatency>();
+
+    public void update(Host host, Statement statement, Exception exception, long newLatencyNanos) {
+        HostLatency latency = hosts.get(host);
+        if (latency == null) {
+            HostLatency created = new HostLatency();
+            latency = hosts.putIfAbsent(host, created);
+            if (latency == null) {
+                latency = created;
+            }
+        }
+        latency.histogram.recordValue(Math.max(0, TimeUnit.NANOSECONDS.toMicros(newLatencyNanos)));
+        if (exception != null) {
+            latency.errors.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return one line for each host: requests, errors and latency percentiles in microseconds
+     */
+    public String summary() {
+        // Sort by address, so the hosts of successive runs line up
+        Map<String, HostLatency> sorted = new TreeMap<String, HostLatency>();
+        for (Map.Entry<Host, HostLatency> entry : hosts.entrySet()) {
+            sorted.put(entry.getKey().getAddress().getHostAddress(), entry.getValue());
+        }
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, HostLatency> entry : sorted.entrySet()) {
+            Histogram histogram = entry.getValue().histogram.copy();
+            sb.append(entry.getKey())
+                    .append(" requests=").append(histogram.getTotalCount()) // $NON-NLS-1$
+                    .append(" errors=").append(entry.getValue().errors.get()) // $NON-NLS-1$
+                    .append(" mean=").append((long) histogram.getMean()) // $NON-NLS-1$
+                    .append(" p50=").append(histogram.getValueAtPercentile(50)) // $NON-NLS-1$
+                    .append(" p99=").append(histogram.getValueAtPercentile(99)) // $NON-NLS-1$
+                    .append(" p99.9=").append(histogram.getValueAtPercentile(99.9)) // $NON-NLS-1$
+                    .append(" max=").append(histogram.getMaxValue()) // $NON-NLS-1$
+                    .append(" (us)\n"); // $NON-NLS-1$
+        }
+        return sb.toString();
+    }
+
+    private static final class HostLatency {
+        // Resizes itself, so any latency can be recorded
+        private final ConcurrentHistogram histogram = new ConcurrentHistogram(3);
+        private final AtomicLong errors = new AtomicLong();
+    }
+}
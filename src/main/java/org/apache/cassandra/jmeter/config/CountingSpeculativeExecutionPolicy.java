@@ -0,0 +1,93 @@
+package org.apache.cassandra.jmeter.config;
+/*
+ * Copyright 2014 Steven Lowenthal
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.policies.SpeculativeExecutionPolicy;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Speculative execution policy that counts the executions started for a statement.
+ * <p>
+ * The driver asks the plan for the next execution once each execution has been sent, so the
+ * number of speculative executions is one less than the number of times it asks.  The driver
+ * creates the plan on the thread that executes the statement, so a thread asks for the count
+ * with {@link #countNextExecutions()} just before it executes, and the plan keeps the count.
+ * Nothing is shared between threads, so counting doesn't slow the load down.
+ */
+public class CountingSpeculativeExecutionPolicy implements SpeculativeExecutionPolicy {
+
+    // The count for the next plan created on each thread, if it asked for one
+    private static final ThreadLocal<Executions> nextExecutions = new ThreadLocal<Executions>();
+
+    private final SpeculativeExecutionPolicy delegate;
+
+    public CountingSpeculativeExecutionPolicy(SpeculativeExecutionPolicy delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * Count the executions of the next statement this thread executes.  Without a counting policy
+     * the count stays at 0.
+     *
+     * @return the count, updated as the driver starts executions
+     */
+    public static Executions countNextExecutions() {
+        Executions executions = new Executions();
+        nextExecutions.set(executions);
+        return executions;
+    }
+
+    public void init(Cluster cluster) {
+        delegate.init(cluster);
+    }
+
+    public SpeculativeExecutionPlan newPlan(String loggedKeyspace, Statement statement) {
+        final SpeculativeExecutionPlan plan = delegate.newPlan(loggedKeyspace, statement);
+        final Executions executions = nextExecutions.get();
+        if (executions == null) {
+            return plan;
+        }
+        nextExecutions.remove();
+        return new SpeculativeExecutionPlan() {
+            public long nextExecution(Host lastQueried) {
+                executions.started.incrementAndGet();
+                return plan.nextExecution(lastQueried);
+            }
+        };
+    }
+
+    public void close() {
+        delegate.close();
+    }
+
+    /**
+     * The executions started for one statement
+     */
+    public static final class Executions {
+        private final AtomicInteger started = new AtomicInteger();
+
+        /**
+         * @return the number of speculative executions started so far
+         */
+        public int getSpeculativeExecutions() {
+            return Math.max(0, started.get() - 1);
+        }
+    }
+}
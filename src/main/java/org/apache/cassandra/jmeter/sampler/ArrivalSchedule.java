@@ -0,0 +1,54 @@
+package org.apache.cassandra.jmeter.sampler;
+/*
+ * Copyright 2014 Steven Lowenthal
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Random;
+
+/**
+ * The intended start times of an open workload.  One schedule is shared by every thread
+ * running the same sampler, so the arrival rate does not depend on the number of threads.
+ */
+class ArrivalSchedule {
+
+    private final Random random = new Random();
+
+    // Intended time of the next arrival, kept as a double so that high rates don't lose precision
+    private double next = 0;
+
+    /**
+     * Claim the next arrival.  The schedule starts with the first call after a reset.
+     *
+     * @param rate target arrivals per second across all threads
+     * @param poisson if true, the gaps between arrivals are exponentially distributed
+     * @return the intended start time of the claimed arrival in milliseconds
+     */
+    synchronized long next(double rate, boolean poisson) {
+        if (next == 0) {
+            next = System.currentTimeMillis();
+        }
+        long intended = (long) next;
+        double interval = 1000.0 / rate;
+        if (poisson) {
+            interval = -Math.log(1.0 - random.nextDouble()) * interval;
+        }
+        next += interval;
+        return intended;
+    }
+
+    synchronized void reset() {
+        next = 0;
+    }
+}
@@ -0,0 +1,151 @@
+package org.apache.cassandra.jmeter.sampler;
+/*
+ * Copyright 2014 Steven Lowenthal
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.codahale.metrics.Snapshot;
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.Metrics;
+import com.datastax.driver.core.Session;
+import org.apache.cassandra.jmeter.config.CassandraSessionFactory;
+import org.apache.jmeter.samplers.AbstractSampler;
+import org.apache.jmeter.samplers.Entry;
+import org.apache.jmeter.samplers.SampleResult;
+import org.apache.jmeter.testbeans.TestBean;
+import org.apache.jmeter.threads.JMeterVariables;
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.jorphan.util.JOrphanUtils;
+import org.apache.log.Logger;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reports the driver's metrics for each Cassandra session - connections, requests in flight,
+ * errors and the driver's own request timings - so they can be set against the test's latencies.
+ * Run it in a thread of its own with a timer to sample periodically.
+ */
+public class CassandraMetricsSampler extends AbstractSampler implements TestBean {
+
+    private static final long serialVersionUID = 234L;
+
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    private static final String ENCODING = "UTF-8"; // $NON-NLS-1$
+
+    private String sessionName = "";
+
+    public CassandraMetricsSampler() {
+    }
+
+    public SampleResult sample(Entry e) {
+        SampleResult res = new SampleResult();
+        res.setSampleLabel(getName());
+        res.setDataType(SampleResult.TEXT);
+        res.setContentType("text/plain"); // $NON-NLS-1$
+        res.setDataEncoding(ENCODING);
+        res.setSuccessful(true);
+        res.setResponseMessageOK();
+        res.setResponseCodeOK();
+        res.sampleStart();
+
+        Map<String, Session> sessions = CassandraSessionFactory.getSessions();
+        if (!JOrphanUtils.isBlank(sessionName)) {
+            Session session = sessions.get(sessionName);
+            sessions.clear();
+            if (session != null) {
+                sessions.put(sessionName, session);
+            }
+        }
+
+        JMeterVariables variables = getThreadContext().getVariables();
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Session> entry : sessions.entrySet()) {
+            Map<String, Number> metrics = getMetrics(entry.getValue());
+            if (metrics == null) {
+                continue;
+            }
+            sb.append(entry.getKey()).append(":\n"); // $NON-NLS-1$
+            for (Map.Entry<String, Number> metric : metrics.entrySet()) {
+                sb.append("  ").append(metric.getKey()).append('=').append(metric.getValue()).append('\n'); // $NON-NLS-1$
+                variables.put(entry.getKey() + "_" + metric.getKey(), metric.getValue().toString()); // $NON-NLS-1$
+            }
+        }
+        res.sampleEnd();
+
+        if (sessions.isEmpty()) {
+            res.setSuccessful(false);
+            res.setResponseCode("000"); // $NON-NLS-1$
+            res.setResponseMessage(JOrphanUtils.isBlank(sessionName) ? "No Cassandra sessions are open"
+                    : "No Cassandra session named " + sessionName);
+        }
+        res.setResponseData(sb.toString(), ENCODING);
+        return res;
+    }
+
+    /**
+     * @return the metrics of the session's cluster, in the order they are reported, or <code>null</code>
+     * if metrics are disabled
+     */
+    private static Map<String, Number> getMetrics(Session session) {
+        Metrics metrics = session.getCluster().getMetrics();
+        if (metrics == null) {
+            return null;
+        }
+        Map<String, Number> values = new LinkedHashMap<String, Number>();
+        values.put("knownHosts", metrics.getKnownHosts().getValue()); // $NON-NLS-1$
+        values.put("connectedToHosts", metrics.getConnectedToHosts().getValue()); // $NON-NLS-1$
+        values.put("openConnections", metrics.getOpenConnections().getValue()); // $NON-NLS-1$
+        values.put("trashedConnections", metrics.getTrashedConnections().getValue()); // $NON-NLS-1$
+
+        int inFlight = 0;
+        Session.State state = session.getState();
+        for (Host host : state.getConnectedHosts()) {
+            inFlight += state.getInFlightQueries(host);
+        }
+        values.put("inFlightRequests", inFlight); // $NON-NLS-1$
+        values.put("executorQueueDepth", metrics.getExecutorQueueDepth().getValue()); // $NON-NLS-1$
+        values.put("blockingExecutorQueueDepth", metrics.getBlockingExecutorQueueDepth().getValue()); // $NON-NLS-1$
+
+        Snapshot requests = metrics.getRequestsTimer().getSnapshot();
+        values.put("requests", metrics.getRequestsTimer().getCount()); // $NON-NLS-1$
+        values.put("requestMeanMicros", TimeUnit.NANOSECONDS.toMicros((long) requests.getMean())); // $NON-NLS-1$
+        values.put("request99thMicros", TimeUnit.NANOSECONDS.toMicros((long) requests.get99thPercentile())); // $NON-NLS-1$
+        values.put("request999thMicros", TimeUnit.NANOSECONDS.toMicros((long) requests.get999thPercentile())); // $NON-NLS-1$
+
+        Metrics.Errors errors = metrics.getErrorMetrics();
+        values.put("connectionErrors", errors.getConnectionErrors().getCount()); // $NON-NLS-1$
+        values.put("readTimeouts", errors.getReadTimeouts().getCount()); // $NON-NLS-1$
+        values.put("writeTimeouts", errors.getWriteTimeouts().getCount()); // $NON-NLS-1$
+        values.put("unavailables", errors.getUnavailables().getCount()); // $NON-NLS-1$
+        values.put("otherErrors", errors.getOthers().getCount()); // $NON-NLS-1$
+        values.put("retries", errors.getRetries().getCount()); // $NON-NLS-1$
+        values.put("ignores", errors.getIgnores().getCount()); // $NON-NLS-1$
+        values.put("speculativeExecutions", errors.getSpeculativeExecutions().getCount()); // $NON-NLS-1$
+        return values;
+    }
+
+    public String getSessionName() {
+        return sessionName;
+    }
+
+    /**
+     * @param sessionName the session to report, or blank for all
+     */
+    public void setSessionName(String sessionName) {
+        this.sessionName = sessionName;
+    }
+}
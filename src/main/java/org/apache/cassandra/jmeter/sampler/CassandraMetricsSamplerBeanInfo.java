@@ -0,0 +1,33 @@
+package org.apache.cassandra.jmeter.sampler;
+/*
+ * Copyright 2014 Steven Lowenthal
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.jmeter.testbeans.BeanInfoSupport;
+
+import java.beans.PropertyDescriptor;
+
+public class CassandraMetricsSamplerBeanInfo extends BeanInfoSupport {
+
+    public CassandraMetricsSamplerBeanInfo() {
+        super(CassandraMetricsSampler.class);
+
+        createPropertyGroup("varName", new String[] { "sessionName" }); // $NON-NLS-1$ $NON-NLS-2$
+
+        PropertyDescriptor p = property("sessionName"); // $NON-NLS-1$
+        p.setValue(NOT_UNDEFINED, Boolean.TRUE);
+        p.setValue(DEFAULT, ""); // $NON-NLS-1$
+    }
+}
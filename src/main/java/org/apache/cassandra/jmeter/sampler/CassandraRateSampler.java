@@ -0,0 +1,115 @@
+package org.apache.cassandra.jmeter.sampler;
+/*
+ * Copyright 2014 Steven Lowenthal
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.datastax.driver.core.Session;
+import org.apache.jmeter.samplers.Entry;
+import org.apache.jmeter.samplers.SampleResult;
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A Cassandra sampler for an open workload model.  Requests are started at a target rate
+ * shared by all threads, are always sent with executeAsync, and their latency is measured from
+ * the time they were scheduled to start rather than the time they were sent.  This keeps a slow
+ * cluster from slowing down the load, and avoids coordinated omission in the results.
+ */
+public class CassandraRateSampler extends CassandraSampler {
+
+    private static final long serialVersionUID = 236L;
+
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    // Arrival distributions (used to communicate with GUI)
+    // N.B. These must not be changed, as they are used in the JMX files
+    static final String CONSTANT = "Constant"; // $NON-NLS-1$
+    static final String POISSON = "Poisson"; // $NON-NLS-1$
+
+    private double targetRate = 1;
+    private String arrivals = CONSTANT;
+
+    // Shared with the clones made for each thread - see clone()
+    private transient ArrivalSchedule schedule = new ArrivalSchedule();
+
+    private transient long intendedStart;
+
+    public CassandraRateSampler() {
+    }
+
+    @Override
+    public SampleResult sample(Entry e) {
+        intendedStart = schedule.next(targetRate, POISSON.equals(arrivals));
+        long delay = intendedStart - System.currentTimeMillis();
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException ex) {
+                log.warn("Interrupted waiting for the next arrival in " + getName());
+                return null;
+            }
+        }
+        return super.sample(e);
+    }
+
+    @Override
+    protected boolean isAsync() {
+        return true;
+    }
+
+    @Override
+    protected List<AsyncResult> executeAsync(Session conn) throws IOException, InterruptedException {
+        return executeAsync(conn, intendedStart);
+    }
+
+    @Override
+    public void testStarted(String host) {
+        super.testStarted(host);
+        schedule.reset();
+    }
+
+    @Override
+    public Object clone() {
+        CassandraRateSampler clone = (CassandraRateSampler) super.clone();
+        clone.schedule = schedule;
+        return clone;
+    }
+
+    public String getTargetRate() {
+        return Double.toString(targetRate);
+    }
+
+    public void setTargetRate(String targetRate) {
+        try {
+            this.targetRate = targetRate == null ? 1 : Double.parseDouble(targetRate);
+        } catch (NumberFormatException e) {
+            this.targetRate = 1;
+        }
+        if (this.targetRate <= 0) {
+            this.targetRate = 1;
+        }
+    }
+
+    public String getArrivals() {
+        return arrivals;
+    }
+
+    public void setArrivals(String arrivals) {
+        this.arrivals = arrivals;
+    }
+}
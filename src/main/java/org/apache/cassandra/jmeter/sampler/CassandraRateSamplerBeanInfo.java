@@ -0,0 +1,70 @@
+package org.apache.cassandra.jmeter.sampler;
+/*
+ * Copyright 2014 Steven Lowenthal
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.beans.PropertyDescriptor;
+
+
+public class CassandraRateSamplerBeanInfo extends CassandraSamplerBeanInfo {
+
+    /**
+     *
+     */
+    public CassandraRateSamplerBeanInfo() {
+        super(CassandraRateSampler.class);
+
+        createPropertyGroup("rate", // $NON-NLS-1$
+                new String[] {
+                "targetRate", // $NON-NLS-1$
+                "arrivals" // $NON-NLS-1$
+                });
+
+        PropertyDescriptor p = property("targetRate"); // $NON-NLS-1$
+        p.setValue(NOT_UNDEFINED, Boolean.TRUE);
+        p.setValue(DEFAULT, "1");
+
+        p = property("arrivals"); // $NON-NLS-1$
+        p.setValue(NOT_UNDEFINED, Boolean.TRUE);
+        p.setValue(DEFAULT, CassandraRateSampler.CONSTANT);
+        p.setValue(NOT_OTHER,Boolean.TRUE);
+        p.setValue(TAGS,new String[]{
+                CassandraRateSampler.CONSTANT,
+                CassandraRateSampler.POISSON
+                });
+
+        // Every request is sent with executeAsync, so batches can't be
+        p = property("queryType"); // $NON-NLS-1$
+        p.setValue(TAGS, ASYNC_QUERY_TYPES);
+        for (String batchProperty : new String[] {
+                "batchSize", // $NON-NLS-1$
+                "batchType", // $NON-NLS-1$
+                "batchBytes", // $NON-NLS-1$
+                "batchGrouping", // $NON-NLS-1$
+                "batchLinger", // $NON-NLS-1$
+                "batchCoalescer" // $NON-NLS-1$
+                }) {
+            property(batchProperty).setHidden(true);
+        }
+
+        // Only synchronous requests are traced
+        property("traceEvery").setHidden(true); // $NON-NLS-1$
+        property("traceThreshold").setHidden(true); // $NON-NLS-1$
+
+        // Each thread must be able to keep requests in flight while the next ones are started
+        p = property("asyncWindow"); // $NON-NLS-1$
+        p.setValue(DEFAULT, "1000");
+    }
+}
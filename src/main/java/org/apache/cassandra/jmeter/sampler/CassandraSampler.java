@@ -15,6 +15,8 @@ package org.apache.cassandra.jmeter.sampler;
  * limitations under the License.
  */
 
+import com.datastax.driver.core.ExecutionInfo;
+import com.datastax.driver.core.QueryTrace;
 import com.datastax.driver.core.Session;
 import org.apache.cassandra.jmeter.AbstractCassandaTestElement;
 import org.apache.cassandra.jmeter.config.CassandraConnection;
@@ -29,9 +31,19 @@ import org.apache.jorphan.logging.LoggingManager;
 import org.apache.jorphan.util.JOrphanUtils;
 import org.apache.log.Logger;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * A org.apache.cassandra.jmeter.sampler which understands Cassandra database requests.
@@ -46,6 +58,25 @@ public class CassandraSampler extends AbstractCassandaTestElement implements Sam
     
     private static final Logger log = LoggingManager.getLoggerForClass();
 
+    // Reading a trace takes a few queries on system_traces, retried until the trace is complete
+    private static final ExecutorService traceFetcher = Executors.newFixedThreadPool(2, new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "TraceFetcher"); // $NON-NLS-1$
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    // No more samples of a thread are traced while this many of its traces are still to be reported
+    private static final int MAX_PENDING_TRACES = 16;
+
+    private boolean discardResponse = false;
+    private int traceEvery = 0;
+    private long traceThreshold = 0;
+    private transient Random traceRandom = new Random();
+    // This thread's traces being fetched, oldest first
+    private transient List<Future<SampleResult>> pendingTraces = new ArrayList<Future<SampleResult>>();
+
     /**
      * Creates a CassandraSampler.
      */
@@ -69,8 +100,13 @@ public class CassandraSampler extends AbstractCassandaTestElement implements Sam
         res.setResponseCodeOK();
 
 
+        awaitPreparedStatement();
         res.sampleStart();
         Session conn = null;
+        List<AsyncResult> completed = null;
+        List<Page> pages = null;
+        QueryTrace trace = null;
+        boolean batched = isDynamicBatch();
 
         try {
             if(JOrphanUtils.isBlank(getSessionName())) {
@@ -83,7 +119,28 @@ public class CassandraSampler extends AbstractCassandaTestElement implements Sam
                 res.latencyEnd(); // use latency to measure connection time
             }
             res.setResponseHeaders(conn.toString());
-            res.setResponseData(execute(conn));
+            if (isAsync()) {
+                completed = executeAsync(conn);
+            } else {
+                byte[] data = execute(conn);
+                if (batched && getBatchedStatements() == 0) {
+                    return null;  // Only added to a batch - the sample that applies it reports its time
+                }
+                res.setResponseData(data);
+                addExecutionInfo(res, getExecutionInfo());
+                if (getExecutionInfo() != null) {
+                    trace = getExecutionInfo().getQueryTrace();
+                }
+                addSpeculativeExecutions(res, getSpeculativeExecutions());
+                if (data != null) {
+                    pages = getPages();
+                    if (isDiscardResponse()) {
+                        // Listeners count the body size by default, so set both
+                        res.setBytes(getDiscardedBytes());
+                        res.setBodySize(getDiscardedBytes());
+                    }
+                }
+            }
         }  catch (Exception ex) {
             res.setResponseMessage(ex.toString());
             res.setResponseCode("000");
@@ -97,9 +154,318 @@ public class CassandraSampler extends AbstractCassandaTestElement implements Sam
 
         // TODO: process warnings? Set Code and Message to success?
         res.sampleEnd();
+
+        if (batched && getBatchedStatements() > 0) {
+            // Each statement in the batch counts as a sample, so listeners show the time per statement
+            res.setSampleCount(getBatchedStatements());
+            if (!res.isSuccessful()) {
+                res.setErrorCount(getBatchedStatements());
+            }
+        }
+        if (pages != null && pages.size() > 1) {
+            addPageResults(res, pages);
+        }
+        if (trace != null && res.getTime() >= traceThreshold) {
+            // Fetched in the background and reported with a later sample, so the thread doesn't wait for it
+            fetchTrace(res, trace);
+        }
+        if (completed != null) {
+            if (completed.isEmpty()) {
+                return null;  // The window is still filling - nothing to report yet
+            }
+            addAsyncResults(res, conn, completed);
+        }
+        addStartupPreparation(res);
+        addFetchedTraces(res);
         return res;
     }
 
+    /**
+     * Report the time taken to prepare the statement at test start, once per test, as a sub-result
+     * of the first sample that is reported after it completes
+     */
+    private void addStartupPreparation(SampleResult res) {
+        StartupPreparation preparation = takeStartupPreparation();
+        if (preparation == null) {
+            return;
+        }
+        long elapsed = preparation.getEndTime() - preparation.getStartTime();
+        SampleResult sub = new SampleResult(res.isStampedAtStart() ? preparation.getStartTime() : preparation.getEndTime(),
+                elapsed);
+        sub.setSampleLabel(getName() + " prepare"); // $NON-NLS-1$
+        sub.setSamplerData(getQuery());
+        sub.setDataType(SampleResult.TEXT);
+        sub.setContentType("text/plain"); // $NON-NLS-1$
+        sub.setDataEncoding(ENCODING);
+        sub.setLatency(elapsed);
+        if (preparation.getError() == null) {
+            sub.setSuccessful(true);
+            sub.setResponseMessageOK();
+            sub.setResponseCodeOK();
+        } else {
+            sub.setResponseMessage(preparation.getError().toString());
+            sub.setResponseCode("000");
+            sub.setSuccessful(false);
+        }
+        res.storeSubResult(sub);
+    }
+
+    /**
+     * Report the time taken to fetch each page of a result that spans more than one page
+     */
+    private void addPageResults(SampleResult res, List<Page> pages) {
+        int n = 0;
+        for (Page page : pages) {
+            long elapsed = page.getEndTime() - page.getStartTime();
+            SampleResult sub = new SampleResult(res.isStampedAtStart() ? page.getStartTime() : page.getEndTime(), elapsed);
+            sub.setSampleLabel(getName() + " page " + ++n); // $NON-NLS-1$
+            sub.setDataType(SampleResult.TEXT);
+            sub.setContentType("text/plain"); // $NON-NLS-1$
+            sub.setDataEncoding(ENCODING);
+            sub.setLatency(elapsed);
+            sub.setResponseData(page.getRows() + " rows", ENCODING); // $NON-NLS-1$
+            sub.setSuccessful(true);
+            sub.setResponseMessageOK();
+            sub.setResponseCodeOK();
+            res.storeSubResult(sub);
+        }
+    }
+
+    @Override
+    protected boolean shouldTrace() {
+        return traceEvery > 0 && pendingTraces.size() < MAX_PENDING_TRACES && traceRandom.nextInt(traceEvery) == 0;
+    }
+
+    /**
+     * Start fetching the events of the trace of the sample, to be reported by {@link #addFetchedTraces}
+     */
+    private void fetchTrace(SampleResult res, final QueryTrace trace) {
+        final long timeStamp = res.isStampedAtStart() ? res.getStartTime() : res.getEndTime();
+        final long elapsed = res.getTime();
+        final String name = getName();
+        pendingTraces.add(traceFetcher.submit(new Callable<SampleResult>() {
+            public SampleResult call() {
+                return newTraceResult(name, timeStamp, elapsed, trace);
+            }
+        }));
+    }
+
+    /**
+     * Add the traces fetched since the previous sample as sub-results.  Each keeps the time stamp and
+     * time of the sample it traced, which is usually an earlier one.
+     */
+    private void addFetchedTraces(SampleResult res) {
+        Iterator<Future<SampleResult>> it = pendingTraces.iterator();
+        while (it.hasNext()) {
+            Future<SampleResult> fetch = it.next();
+            if (!fetch.isDone()) {
+                continue;
+            }
+            it.remove();
+            try {
+                res.storeSubResult(fetch.get());
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException ex) {
+                log.debug("Could not fetch a trace in " + getName() + ": " + ex.getCause());
+            }
+        }
+    }
+
+    /**
+     * @return the events of the query trace as a result, with a sub-result of its own for each event
+     */
+    private static SampleResult newTraceResult(String name, long timeStamp, long time, QueryTrace trace) {
+        SampleResult traceResult = new SampleResult(timeStamp, time);
+        traceResult.setSampleLabel(name + " trace " + trace.getTraceId()); // $NON-NLS-1$
+        traceResult.setDataType(SampleResult.TEXT);
+        traceResult.setContentType("text/plain"); // $NON-NLS-1$
+        traceResult.setDataEncoding(ENCODING);
+        try {
+            StringBuilder sb = new StringBuilder();
+            int previousElapsed = 0;
+            for (QueryTrace.Event event : trace.getEvents()) {
+                // Time since the event before, on any host
+                int elapsed = Math.max(0, event.getSourceElapsedMicros() - previousElapsed);
+                previousElapsed = event.getSourceElapsedMicros();
+                sb.append(event.getSourceElapsedMicros()).append("us ") // $NON-NLS-1$
+                        .append(event.getSource().getHostAddress()).append(" [").append(event.getThreadName()).append("] ") // $NON-NLS-1$ $NON-NLS-2$
+                        .append(event.getDescription()).append('\n');
+
+                SampleResult sub = new SampleResult(event.getTimestamp(), elapsed / 1000);
+                sub.setSampleLabel(event.getDescription());
+                sub.setDataType(SampleResult.TEXT);
+                sub.setContentType("text/plain"); // $NON-NLS-1$
+                sub.setDataEncoding(ENCODING);
+                sub.setResponseData(event.getSourceElapsedMicros() + "us on " + event.getSource().getHostAddress() // $NON-NLS-1$
+                        + " [" + event.getThreadName() + "]", ENCODING); // $NON-NLS-1$ $NON-NLS-2$
+                sub.setSuccessful(true);
+                sub.setResponseMessageOK();
+                sub.setResponseCodeOK();
+                traceResult.storeSubResult(sub);
+            }
+            traceResult.setResponseData("Coordinator " + trace.getCoordinator().getHostAddress() + ", " // $NON-NLS-1$
+                    + trace.getDurationMicros() + "us\n" + sb, ENCODING); // $NON-NLS-1$
+            traceResult.setSuccessful(true);
+            traceResult.setResponseMessageOK();
+            traceResult.setResponseCodeOK();
+        } catch (RuntimeException ex) {
+            log.debug("Could not fetch trace " + trace.getTraceId() + " in " + name + ": " + ex);
+            traceResult.setResponseMessage(ex.toString());
+            traceResult.setResponseCode("000");
+            traceResult.setSuccessful(false);
+        }
+        return traceResult;
+    }
+
+    /**
+     * Add the coordinator, the number of hosts tried and the consistency achieved to the response headers
+     */
+    private static void addExecutionInfo(SampleResult res, ExecutionInfo info) {
+        if (info == null || info.getQueriedHost() == null) {
+            return;
+        }
+        StringBuilder sb = new StringBuilder(res.getResponseHeaders());
+        sb.append("\nCoordinator: ").append(info.getQueriedHost().getAddress().getHostAddress()); // $NON-NLS-1$
+        sb.append("\nTried hosts: ").append(info.getTriedHosts().size()); // $NON-NLS-1$
+        if (info.getAchievedConsistencyLevel() != null) {
+            // Only set when the retry policy lowered the consistency level
+            sb.append("\nAchieved consistency: ").append(info.getAchievedConsistencyLevel()); // $NON-NLS-1$
+        }
+        res.setResponseHeaders(sb.toString());
+    }
+
+    private static void addSpeculativeExecutions(SampleResult res, int speculativeExecutions) {
+        if (speculativeExecutions > 0) {
+            res.setResponseHeaders(res.getResponseHeaders() + "\nSpeculative executions: " + speculativeExecutions); // $NON-NLS-1$
+        }
+    }
+
+    /**
+     * Report each completed asynchronous request as a sub-result carrying its own latency.  The sample
+     * counts once for each request and its time is the sum of their latencies, so listeners show the
+     * latency per request rather than the time spent waiting for the window.
+     */
+    private void addAsyncResults(SampleResult res, Session conn, List<AsyncResult> completed) {
+        int errors = 0;
+        long elapsedTotal = 0;
+        for (AsyncResult ar : completed) {
+            long elapsed = ar.getEndTime() - ar.getStartTime();
+            SampleResult sub = new SampleResult(res.isStampedAtStart() ? ar.getStartTime() : ar.getEndTime(), elapsed);
+            sub.setSampleLabel(getName());
+            sub.setSamplerData(toString());
+            sub.setDataType(SampleResult.TEXT);
+            sub.setContentType("text/plain"); // $NON-NLS-1$
+            sub.setDataEncoding(ENCODING);
+            sub.setResponseHeaders(conn.toString());
+            if (ar.getResultSet() != null) {
+                addExecutionInfo(sub, ar.getResultSet().getExecutionInfo());
+            }
+            addSpeculativeExecutions(sub, ar.getSpeculativeExecutions());
+            sub.setLatency(elapsed);
+            try {
+                if (ar.getError() != null) {
+                    throw ar.getError();
+                }
+                sub.setResponseData(getResultSetBytes(ar.getResultSet()));
+                if (isDiscardResponse()) {
+                    sub.setBytes(getDiscardedBytes());
+                    sub.setBodySize(getDiscardedBytes());
+                }
+                sub.setSuccessful(true);
+                sub.setResponseMessageOK();
+                sub.setResponseCodeOK();
+            } catch (Throwable ex) {
+                sub.setResponseMessage(ex.toString());
+                sub.setResponseCode("000");
+                sub.setResponseData(String.valueOf(ex.getMessage()).getBytes());
+                sub.setSuccessful(false);
+                errors++;
+            }
+            res.storeSubResult(sub);
+            elapsedTotal += elapsed;
+        }
+        res.setEndTime(res.getStartTime() + elapsedTotal);
+        res.setLatency(elapsedTotal);
+
+        res.setResponseData(completed.size() + " requests completed, " + errors + " failed", ENCODING);
+        res.setSampleCount(completed.size());
+        res.setErrorCount(errors);
+        if (errors > 0) {
+            res.setSuccessful(false);
+            res.setResponseCode("000");
+            res.setResponseMessage(errors + " of " + completed.size() + " asynchronous requests failed");
+        }
+    }
+
+    @Override
+    public boolean isDiscardResponse() {
+        return discardResponse;
+    }
+
+    public void setDiscardResponse(boolean discardResponse) {
+        this.discardResponse = discardResponse;
+    }
+
+    /**
+     * Don't leave asynchronous requests behind when the thread stops.  JMeter takes no more samples
+     * from the thread, so the requests still in the window (up to Async Window - 1, and likely the
+     * slowest) are waited for but not reported; their number is logged instead.  Traces still being
+     * fetched are dropped and counted in the same way.
+     */
+    @Override
+    public void threadFinished() {
+        super.threadFinished();
+        try {
+            int outstanding = awaitAsync();
+            if (outstanding > 0) {
+                log.info(outstanding + " asynchronous requests still in flight when the thread finished were not reported in "
+                        + getName());
+            }
+        } catch (InterruptedException ex) {
+            log.warn("Interrupted waiting for asynchronous requests in " + getName());
+        }
+        if (!pendingTraces.isEmpty()) {
+            for (Future<SampleResult> fetch : pendingTraces) {
+                fetch.cancel(true);
+            }
+            log.info(pendingTraces.size() + " traces still being fetched when the thread finished were not reported in "
+                    + getName());
+            pendingTraces.clear();
+        }
+    }
+
+    public String getTraceEvery() {
+        return Integer.toString(traceEvery);
+    }
+
+    /**
+     * @param traceEvery trace one in this many samples on average, or 0 (or blank) for none
+     */
+    public void setTraceEvery(String traceEvery) {
+        try {
+            this.traceEvery = Integer.parseInt(traceEvery);
+        } catch (NumberFormatException e) {
+            this.traceEvery = 0;
+        }
+    }
+
+    public String getTraceThreshold() {
+        return Long.toString(traceThreshold);
+    }
+
+    /**
+     * @param traceThreshold only keep the traces of samples taking at least this many milliseconds
+     */
+    public void setTraceThreshold(String traceThreshold) {
+        try {
+            this.traceThreshold = Long.parseLong(traceThreshold);
+        } catch (NumberFormatException e) {
+            this.traceThreshold = 0;
+        }
+    }
+
     /**
      * @see org.apache.jmeter.samplers.AbstractSampler#applies(org.apache.jmeter.config.ConfigTestElement)
      */
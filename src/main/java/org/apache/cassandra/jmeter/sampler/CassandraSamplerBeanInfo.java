@@ -16,7 +16,9 @@ package org.apache.cassandra.jmeter.sampler;
  */
 
 import org.apache.cassandra.jmeter.CassandraTestElementBeanInfoSupport;
+import org.apache.jmeter.testbeans.TestBean;
 
+import java.beans.PropertyDescriptor;
 
 public class CassandraSamplerBeanInfo extends CassandraTestElementBeanInfoSupport {
 
@@ -24,6 +26,48 @@ public class CassandraSamplerBeanInfo extends CassandraTestElementBeanInfoSuppor
      *
      */
     public CassandraSamplerBeanInfo() {
-        super(CassandraSampler.class);
+        this(CassandraSampler.class);
+    }
+
+    protected CassandraSamplerBeanInfo(Class<? extends TestBean> beanClass) {
+        super(beanClass);
+
+        createPropertyGroup("execution", // $NON-NLS-1$
+                new String[] {
+                "asyncWindow", // $NON-NLS-1$
+                "batchCoalescer" // $NON-NLS-1$
+                });
+
+        createPropertyGroup("response", // $NON-NLS-1$
+                new String[] {
+                "discardResponse" // $NON-NLS-1$
+                });
+
+        createPropertyGroup("tracing", // $NON-NLS-1$
+                new String[] {
+                "traceEvery", // $NON-NLS-1$
+                "traceThreshold" // $NON-NLS-1$
+                });
+
+        PropertyDescriptor p = property("queryType"); // $NON-NLS-1$
+        p.setValue(TAGS, SAMPLER_QUERY_TYPES);
+
+        p = property("asyncWindow"); // $NON-NLS-1$
+        p.setHidden(false);
+
+        p = property("batchCoalescer"); // $NON-NLS-1$
+        p.setHidden(false);
+
+        p = property("discardResponse"); // $NON-NLS-1$
+        p.setValue(NOT_UNDEFINED, Boolean.TRUE);
+        p.setValue(DEFAULT, Boolean.FALSE);
+
+        p = property("traceEvery"); // $NON-NLS-1$
+        p.setValue(NOT_UNDEFINED, Boolean.TRUE);
+        p.setValue(DEFAULT, "");
+
+        p = property("traceThreshold"); // $NON-NLS-1$
+        p.setValue(NOT_UNDEFINED, Boolean.TRUE);
+        p.setValue(DEFAULT, "");
     }
 }
@@ -0,0 +1,21 @@
+package javax.xml.bind;
+
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * The part of javax.xml.bind that HistogramLogReader uses, for the tests that read latency logs
+ * back on JVMs that no longer include it (Java 11 and later).  Older JVMs load their own.
+ */
+public final class DatatypeConverter {
+
+    private DatatypeConverter() {
+    }
+
+    public static byte[] parseBase64Binary(String lexicalXSDBase64Binary) {
+        return Base64.decodeBase64(lexicalXSDBase64Binary);
+    }
+
+    public static String printBase64Binary(byte[] val) {
+        return Base64.encodeBase64String(val);
+    }
+}
@@ -0,0 +1,1114 @@
+package org.apache.cassandra.jmeter;
+/*
+ * Copyright 2014 Steven Lowenthal
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.datastax.driver.core.DataType;
+import com.datastax.driver.core.ProtocolVersion;
+import com.datastax.driver.core.utils.UUIDs;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.util.CharsetUtil;
+import net.jpountz.lz4.LZ4Factory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A single Cassandra node, in process, that speaks enough of version 3 of the native protocol to
+ * satisfy the driver: STARTUP, OPTIONS, REGISTER, QUERY, PREPARE, EXECUTE and BATCH, and the
+ * system table queries the driver uses to discover the topology and schema.  Queries return
+ * canned results, after a configurable latency, and may fail with injected errors.  Traced
+ * requests get a trace of two events, which the driver reads from system_traces.  Frames are
+ * compressed if the client asks for lz4.  Nothing is stored, so the plugin can be tested, and its
+ * client side overhead measured, without a cluster.
+ * <p/>
+ * The Cassandra Connection has no port setting, so for it the stub must listen on port 9042.
+ */
+public class StubCassandraServer {
+
+    private static final Logger logger = LoggerFactory.getLogger(StubCassandraServer.class);
+
+    public static final int DEFAULT_PORT = 9042;
+    public static final String CLUSTER_NAME = "Stub Cluster";
+    public static final String DATA_CENTER = "datacenter1";
+    public static final String RELEASE_VERSION = "2.1.9";
+
+    private static final int PROTOCOL_VERSION = 3;
+
+    // Opcodes
+    private static final int ERROR = 0x00;
+    private static final int STARTUP = 0x01;
+    private static final int READY = 0x02;
+    private static final int OPTIONS = 0x05;
+    private static final int SUPPORTED = 0x06;
+    private static final int QUERY = 0x07;
+    private static final int RESULT = 0x08;
+    private static final int PREPARE = 0x09;
+    private static final int EXECUTE = 0x0A;
+    private static final int REGISTER = 0x0B;
+    private static final int BATCH = 0x0D;
+
+    // Result kinds
+    private static final int VOID = 0x0001;
+    private static final int ROWS = 0x0002;
+    private static final int SET_KEYSPACE = 0x0003;
+    private static final int PREPARED = 0x0004;
+
+    // Rows metadata flags
+    private static final int HAS_MORE_PAGES = 0x0002;
+    private static final int NO_METADATA = 0x0004;
+
+    private static final int PROTOCOL_ERROR = 0x000A;
+    private static final int UNPREPARED = 0x2500;
+
+    private static final UUID HOST_ID = UUID.fromString("9f3b3cd1-1c4d-4a36-9a8e-5a3b0f0e4a01");
+    private static final UUID SCHEMA_VERSION = UUID.fromString("59adb24e-f3cd-3e02-97f0-5b395827453f");
+
+    /**
+     * Errors that can be injected.  Each is sent with the details the driver expects for it.
+     */
+    public enum Error {
+        SERVER_ERROR(0x0000), UNAVAILABLE(0x1000), OVERLOADED(0x1001), WRITE_TIMEOUT(0x1100),
+        READ_TIMEOUT(0x1200), INVALID(0x2200);
+
+        private final int code;
+
+        Error(int code) {
+            this.code = code;
+        }
+    }
+
+    /**
+     * Time taken to answer a request
+     */
+    public interface Latency {
+        long nextNanos(Random random);
+    }
+
+    public static Latency fixedLatency(final long micros) {
+        return new Latency() {
+            public long nextNanos(Random random) {
+                return TimeUnit.MICROSECONDS.toNanos(micros);
+            }
+        };
+    }
+
+    public static Latency uniformLatency(final long minMicros, final long maxMicros) {
+        return new Latency() {
+            public long nextNanos(Random random) {
+                return TimeUnit.MICROSECONDS.toNanos(minMicros + (long) (random.nextDouble() * (maxMicros - minMicros)));
+            }
+        };
+    }
+
+    /**
+     * Latencies with a long tail, as often seen from a real node
+     */
+    public static Latency exponentialLatency(final long meanMicros) {
+        return new Latency() {
+            public long nextNanos(Random random) {
+                return TimeUnit.MICROSECONDS.toNanos((long) (-Math.log(1 - random.nextDouble()) * meanMicros));
+            }
+        };
+    }
+
+    /**
+     * Canned rows returned for a query
+     */
+    public static final class Result {
+        private final String[] names;
+        private final DataType[] types;
+        private final List<Object[]> rows;
+
+        public Result(String[] names, DataType[] types, List<Object[]> rows) {
+            if (names.length != types.length) {
+                throw new IllegalArgumentException("Need a type for each column");
+            }
+            this.names = names;
+            this.types = types;
+            this.rows = rows;
+        }
+    }
+
+    public static Result rows(String[] names, DataType[] types, Object[]... rows) {
+        return new Result(names, types, Arrays.asList(rows));
+    }
+
+    private static final Result EMPTY = rows(new String[0], new DataType[0]);
+
+    private static final Result PEERS = rows(
+            new String[] { "peer", "data_center", "host_id", "rack", "release_version", "rpc_address", "schema_version", "tokens" },
+            new DataType[] { DataType.inet(), DataType.varchar(), DataType.uuid(), DataType.varchar(), DataType.varchar(),
+                    DataType.inet(), DataType.uuid(), DataType.set(DataType.varchar()) });
+
+    // What to answer to a query, by normalized query text
+    private static final class Prime {
+        private volatile Result result;
+        private volatile Error error;
+        private volatile DataType[] variables;
+        // Table whose columns the variables are, if any
+        private volatile Table table;
+        private volatile String[] variableNames;
+    }
+
+    /**
+     * The page of a result a request asks for
+     */
+    private static final class Paging {
+        private final int pageSize;
+        private final int offset;
+
+        Paging(int pageSize, int offset) {
+            this.pageSize = pageSize;
+            this.offset = offset;
+        }
+    }
+
+    private static final Paging ALL_ROWS = new Paging(-1, 0);
+
+    /**
+     * A table reported in the schema, so the driver knows its partition key
+     */
+    private static final class Table {
+        private final String keyspace;
+        private final String name;
+        private final String[] columns;
+        private final DataType[] types;
+        private final int partitionKeyColumns;
+
+        Table(String keyspace, String name, String[] columns, DataType[] types, int partitionKeyColumns) {
+            this.keyspace = keyspace;
+            this.name = name;
+            this.columns = columns;
+            this.types = types;
+            this.partitionKeyColumns = partitionKeyColumns;
+        }
+    }
+
+    private final InetSocketAddress address;
+    private final ConcurrentMap<String, Prime> primes = new ConcurrentHashMap<String, Prime>();
+    private final ConcurrentMap<String, String> prepared = new ConcurrentHashMap<String, String>();
+    private final List<Table> tables = new CopyOnWriteArrayList<Table>();
+    // Query of each traced request, by trace id
+    private final ConcurrentMap<UUID, String> traces = new ConcurrentHashMap<UUID, String>();
+    private final Random random = new Random();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong prepares = new AtomicLong();
+    private final AtomicLong compressedRequests = new AtomicLong();
+    private volatile int lastPageSize = -1;
+
+    private volatile Latency latency = fixedLatency(0);
+    private volatile Latency traceLatency = fixedLatency(0);
+    private volatile double errorRate = 0;
+    private volatile Error randomError = Error.OVERLOADED;
+
+    private EventLoopGroup group;
+    private Channel channel;
+
+    public StubCassandraServer(String host, int port) {
+        this.address = new InetSocketAddress(host, port);
+    }
+
+    public StubCassandraServer(String host) {
+        this(host, DEFAULT_PORT);
+    }
+
+    public synchronized void start() throws InterruptedException {
+        group = new NioEventLoopGroup(1);
+        ServerBootstrap bootstrap = new ServerBootstrap()
+                .group(group)
+                .channel(NioServerSocketChannel.class)
+                .childOption(ChannelOption.TCP_NODELAY, true)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    protected void initChannel(SocketChannel ch) {
+                        // The body length is the last field of the 9 byte header
+                        ch.pipeline().addLast(new LengthFieldBasedFrameDecoder(256 * 1024 * 1024, 5, 4));
+                        ch.pipeline().addLast(new RequestHandler());
+                    }
+                });
+        channel = bootstrap.bind(address).sync().channel();
+    }
+
+    public synchronized void stop() {
+        if (channel != null) {
+            channel.close().awaitUninterruptibly();
+            group.shutdownGracefully(0, 1, TimeUnit.SECONDS).awaitUninterruptibly();
+            channel = null;
+        }
+    }
+
+    /**
+     * Answer the query with the given rows
+     */
+    public void prime(String query, Result result) {
+        getPrime(query).result = result;
+    }
+
+    /**
+     * Fail every execution of the query with the given error
+     */
+    public void primeError(String query, Error error) {
+        getPrime(query).error = error;
+    }
+
+    /**
+     * Give the bind variables of the query these types when it is prepared.  Otherwise they are varchar.
+     */
+    public void primeVariables(String query, DataType... types) {
+        getPrime(query).variables = types;
+    }
+
+    /**
+     * Give the bind variables of the query the names and types of these columns of a table added
+     * with {@link #addTable}, so the driver can compute the routing key of its bound statements
+     */
+    public void primeVariables(String query, String keyspace, String table, String... columns) {
+        Table t = getTable(keyspace, table);
+        DataType[] types = new DataType[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            types[i] = t.types[Arrays.asList(t.columns).indexOf(columns[i])];
+        }
+        Prime prime = getPrime(query);
+        prime.table = t;
+        prime.variableNames = columns;
+        prime.variables = types;
+    }
+
+    /**
+     * Report a table in the schema, whose partition key is its first partitionKeyColumns columns.
+     * The driver only reads the schema when it connects, so tables must be added before that, and
+     * are kept by {@link #reset()}.
+     */
+    public void addTable(String keyspace, String name, String[] columns, DataType[] types, int partitionKeyColumns) {
+        if (columns.length != types.length || partitionKeyColumns < 1 || partitionKeyColumns > columns.length) {
+            throw new IllegalArgumentException("Need a type for each column, and at least one partition key column");
+        }
+        tables.add(new Table(keyspace, name, columns, types, partitionKeyColumns));
+    }
+
+    private Table getTable(String keyspace, String name) {
+        for (Table table : tables) {
+            if (table.keyspace.equals(keyspace) && table.name.equals(name)) {
+                return table;
+            }
+        }
+        throw new IllegalArgumentException("Unknown table " + keyspace + "." + name);
+    }
+
+    /**
+     * Answer each query, execution, batch and preparation after this latency
+     */
+    public void setLatency(Latency latency) {
+        this.latency = latency;
+    }
+
+    /**
+     * Answer the queries on system_traces, with which the driver reads a trace, after this latency
+     */
+    public void setTraceLatency(Latency traceLatency) {
+        this.traceLatency = traceLatency;
+    }
+
+    /**
+     * Fail this fraction of the queries, executions and batches, chosen at random, with the given error
+     */
+    public void setErrorRate(double errorRate, Error error) {
+        this.errorRate = errorRate;
+        this.randomError = error;
+    }
+
+    /**
+     * Forget the primes, traces, latencies and error rate, and reset the counts
+     */
+    public void reset() {
+        primes.clear();
+        traces.clear();
+        latency = fixedLatency(0);
+        traceLatency = fixedLatency(0);
+        errorRate = 0;
+        requests.set(0);
+        errors.set(0);
+        prepares.set(0);
+        compressedRequests.set(0);
+        lastPageSize = -1;
+    }
+
+    /**
+     * @return the number of queries, executions and batches received, not counting system table queries
+     */
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * @return the number of requests failed by an injected error
+     */
+    public long getErrorCount() {
+        return errors.get();
+    }
+
+    /**
+     * @return the number of PREPARE requests received
+     */
+    public long getPrepareCount() {
+        return prepares.get();
+    }
+
+    /**
+     * @return the number of requests received compressed
+     */
+    public long getCompressedRequestCount() {
+        return compressedRequests.get();
+    }
+
+    /**
+     * @return the page size asked for by the last query or execution, or -1 if it asked for all rows
+     */
+    public int getLastPageSize() {
+        return lastPageSize;
+    }
+
+    private Prime getPrime(String query) {
+        String key = normalize(query);
+        Prime prime = primes.get(key);
+        if (prime == null) {
+            Prime created = new Prime();
+            prime = primes.putIfAbsent(key, created);
+            if (prime == null) {
+                prime = created;
+            }
+        }
+        return prime;
+    }
+
+    private static String normalize(String query) {
+        String normalized = query.trim().replaceAll("\\s+", " ");
+        if (normalized.endsWith(";")) {
+            normalized = normalized.substring(0, normalized.length() - 1).trim();
+        }
+        return normalized.toLowerCase(Locale.ENGLISH);
+    }
+
+    private class RequestHandler extends SimpleChannelInboundHandler<ByteBuf> {
+
+        // Whether the client asked for lz4 compression at startup
+        private volatile boolean lz4;
+
+        protected void channelRead0(ChannelHandlerContext ctx, ByteBuf frame) {
+            int version = frame.readByte() & 0x7F;
+            int flags = frame.readByte();
+            int stream = frame.readShort();
+            int opcode = frame.readByte();
+            frame.readInt(); // Length, already checked by the frame decoder
+            if (version != PROTOCOL_VERSION) {
+                writeError(ctx, stream, PROTOCOL_ERROR, "Invalid or unsupported protocol version: " + version, null);
+                return;
+            }
+            if ((flags & 0x01) != 0) {
+                if (!lz4) {
+                    writeError(ctx, stream, PROTOCOL_ERROR, "Compression was not negotiated", null);
+                    return;
+                }
+                frame = decompress(frame);
+                compressedRequests.incrementAndGet();
+            }
+            UUID traceId = (flags & 0x02) != 0 ? UUIDs.timeBased() : null;
+            switch (opcode) {
+                case STARTUP:
+                    String compression = readStringMap(frame).get("COMPRESSION");
+                    if (compression != null && !"lz4".equals(compression)) {
+                        writeError(ctx, stream, PROTOCOL_ERROR, "Only lz4 compression is supported", null);
+                    } else {
+                        write(ctx, stream, READY, ctx.alloc().buffer(0));
+                        // Every frame after READY may be compressed
+                        lz4 = compression != null;
+                    }
+                    break;
+                case REGISTER:
+                    write(ctx, stream, READY, ctx.alloc().buffer(0));
+                    break;
+                case OPTIONS:
+                    ByteBuf supported = ctx.alloc().buffer();
+                    supported.writeShort(2);
+                    writeString(supported, "CQL_VERSION");
+                    writeStringList(supported, Collections.singletonList("3.2.0"));
+                    writeString(supported, "COMPRESSION");
+                    writeStringList(supported, Collections.singletonList("lz4"));
+                    write(ctx, stream, SUPPORTED, supported);
+                    break;
+                case QUERY:
+                    String text = readLongString(frame);
+                    query(ctx, stream, text, readPaging(frame), traceId);
+                    break;
+                case PREPARE:
+                    prepare(ctx, stream, readLongString(frame));
+                    break;
+                case EXECUTE:
+                    byte[] id = readShortBytes(frame);
+                    String query = prepared.get(toHex(id));
+                    if (query == null) {
+                        ByteBuf details = ctx.alloc().buffer();
+                        writeShortBytes(details, id);
+                        writeError(ctx, stream, UNPREPARED, "Unknown prepared statement", details);
+                    } else {
+                        query(ctx, stream, query, readPaging(frame), traceId);
+                    }
+                    break;
+                case BATCH:
+                    respond(ctx, stream, null, ALL_ROWS, null, traceId);
+                    break;
+                default:
+                    writeError(ctx, stream, PROTOCOL_ERROR, "Unsupported opcode " + opcode, null);
+            }
+        }
+
+        private void query(ChannelHandlerContext ctx, int stream, String query, Paging paging, UUID traceId) {
+            String normalized = normalize(query);
+            if (normalized.startsWith("use ")) {
+                ByteBuf body = ctx.alloc().buffer();
+                body.writeInt(SET_KEYSPACE);
+                writeString(body, normalized.substring(4).trim().replace("\"", ""));
+                write(ctx, stream, RESULT, body);
+            } else if (normalized.startsWith("select") && normalized.contains(" from system.local")) {
+                writeRows(ctx, stream, localRow());
+            } else if (normalized.startsWith("select") && normalized.contains(" from system.peers")) {
+                writeRows(ctx, stream, PEERS);
+            } else if (normalized.startsWith("select") && normalized.contains(" from system.schema_keyspaces")) {
+                writeRows(ctx, stream, schemaKeyspaces());
+            } else if (normalized.startsWith("select") && normalized.contains(" from system.schema_columnfamilies")) {
+                writeRows(ctx, stream, schemaTables());
+            } else if (normalized.startsWith("select") && normalized.contains(" from system.schema_columns")) {
+                writeRows(ctx, stream, schemaColumns());
+            } else if (normalized.startsWith("select") && normalized.contains(" from system_traces.sessions")) {
+                writeRowsAfter(ctx, stream, traceSession(sessionId(normalized)), traceLatency);
+            } else if (normalized.startsWith("select") && normalized.contains(" from system_traces.events")) {
+                writeRowsAfter(ctx, stream, traceEvents(sessionId(normalized)), traceLatency);
+            } else if (normalized.startsWith("select") && normalized.contains(" from system.")) {
+                // No user types.  Every row is skipped, so the columns don't matter.
+                writeRows(ctx, stream, EMPTY);
+            } else {
+                Prime prime = primes.get(normalized);
+                Result result = prime == null ? null : prime.result;
+                if (result == null && normalized.startsWith("select")) {
+                    result = EMPTY;
+                }
+                if (traceId != null) {
+                    traces.put(traceId, query);
+                }
+                lastPageSize = paging.pageSize;
+                respond(ctx, stream, result, paging, prime == null ? null : prime.error, traceId);
+            }
+        }
+
+        /**
+         * Answer a query on a system table after the given latency
+         */
+        private void writeRowsAfter(final ChannelHandlerContext ctx, final int stream, final Result result, Latency latency) {
+            long delay = latency.nextNanos(random);
+            if (delay > 0) {
+                ctx.executor().schedule(new Runnable() {
+                    public void run() {
+                        writeRows(ctx, stream, result);
+                    }
+                }, delay, TimeUnit.NANOSECONDS);
+            } else {
+                writeRows(ctx, stream, result);
+            }
+        }
+
+        /**
+         * Answer a request from the client's workload, after the latency, with the page of the result or an error
+         */
+        private void respond(final ChannelHandlerContext ctx, final int stream, final Result result, final Paging paging,
+                             Error error, final UUID traceId) {
+            requests.incrementAndGet();
+            if (error == null && errorRate > 0 && random.nextDouble() < errorRate) {
+                error = randomError;
+            }
+            final Error failure = error;
+            Runnable response = new Runnable() {
+                public void run() {
+                    if (failure != null) {
+                        errors.incrementAndGet();
+                        writeError(ctx, stream, failure);
+                    } else if (result != null) {
+                        writeRows(ctx, stream, result, paging, traceId);
+                    } else {
+                        ByteBuf body = ctx.alloc().buffer(4);
+                        body.writeInt(VOID);
+                        write(ctx, stream, RESULT, body, traceId);
+                    }
+                }
+            };
+            long delay = latency.nextNanos(random);
+            if (delay > 0) {
+                ctx.executor().schedule(response, delay, TimeUnit.NANOSECONDS);
+            } else {
+                response.run();
+            }
+        }
+
+        private void prepare(ChannelHandlerContext ctx, int stream, String query) {
+            prepares.incrementAndGet();
+            String normalized = normalize(query);
+            byte[] id = md5(normalized);
+            prepared.put(toHex(id), query);
+
+            Prime prime = primes.get(normalized);
+            int count = countVariables(query);
+            DataType[] types = prime == null ? null : prime.variables;
+            String[] names = prime == null ? null : prime.variableNames;
+            Table table = prime == null ? null : prime.table;
+            if (types == null || types.length != count) {
+                types = new DataType[count];
+                Arrays.fill(types, DataType.varchar());
+                names = null;
+                table = null;
+            }
+            if (names == null) {
+                names = new String[count];
+                for (int i = 0; i < count; i++) {
+                    names[i] = "v" + i;
+                }
+            }
+            ByteBuf body = ctx.alloc().buffer();
+            body.writeInt(PREPARED);
+            writeShortBytes(body, id);
+            if (table == null) {
+                writeMetadata(body, names, types);
+            } else {
+                writeMetadata(body, table.keyspace, table.name, names, types);
+            }
+            // The columns come with each result instead
+            body.writeInt(NO_METADATA);
+            body.writeInt(0);
+            writeAfterLatency(ctx, stream, RESULT, body);
+        }
+
+        /**
+         * Answer after the latency, as preparing takes a round trip to a real node too
+         */
+        private void writeAfterLatency(final ChannelHandlerContext ctx, final int stream, final int opcode, final ByteBuf body) {
+            long delay = latency.nextNanos(random);
+            if (delay > 0) {
+                ctx.executor().schedule(new Runnable() {
+                    public void run() {
+                        write(ctx, stream, opcode, body);
+                    }
+                }, delay, TimeUnit.NANOSECONDS);
+            } else {
+                write(ctx, stream, opcode, body);
+            }
+        }
+
+        private void writeRows(ChannelHandlerContext ctx, int stream, Result result) {
+            writeRows(ctx, stream, result, ALL_ROWS, null);
+        }
+
+        /**
+         * Write the page of rows asked for, with the offset of the next page as the paging state if there is one
+         */
+        private void writeRows(ChannelHandlerContext ctx, int stream, Result result, Paging paging, UUID traceId) {
+            int from = Math.min(paging.offset, result.rows.size());
+            int to = paging.pageSize > 0 ? Math.min(from + paging.pageSize, result.rows.size()) : result.rows.size();
+            List<Object[]> rows = result.rows.subList(from, to);
+            ByteBuf body = ctx.alloc().buffer();
+            body.writeInt(ROWS);
+            writeMetadata(body, "stub", "stub", result.names, result.types, to < result.rows.size() ? to : -1);
+            body.writeInt(rows.size());
+            for (Object[] row : rows) {
+                for (int i = 0; i < result.types.length; i++) {
+                    if (row[i] == null) {
+                        body.writeInt(-1);
+                    } else {
+                        ByteBuffer value = result.types[i].serialize(row[i], ProtocolVersion.V3);
+                        body.writeInt(value.remaining());
+                        body.writeBytes(value.duplicate());
+                    }
+                }
+            }
+            write(ctx, stream, RESULT, body, traceId);
+        }
+
+        private void writeError(ChannelHandlerContext ctx, int stream, Error error) {
+            ByteBuf details = ctx.alloc().buffer();
+            switch (error) {
+                case UNAVAILABLE:
+                    details.writeShort(0x0001); // ONE
+                    details.writeInt(1);
+                    details.writeInt(0);
+                    break;
+                case WRITE_TIMEOUT:
+                    details.writeShort(0x0001);
+                    details.writeInt(0);
+                    details.writeInt(1);
+                    writeString(details, "SIMPLE");
+                    break;
+                case READ_TIMEOUT:
+                    details.writeShort(0x0001);
+                    details.writeInt(0);
+                    details.writeInt(1);
+                    details.writeByte(0);
+                    break;
+                default:
+                    break;
+            }
+            writeError(ctx, stream, error.code, "Injected " + error, details);
+        }
+
+        private void writeError(ChannelHandlerContext ctx, int stream, int code, String message, ByteBuf details) {
+            ByteBuf body = ctx.alloc().buffer();
+            body.writeInt(code);
+            writeString(body, message);
+            if (details != null) {
+                body.writeBytes(details);
+                details.release();
+            }
+            write(ctx, stream, ERROR, body);
+        }
+
+        private void write(ChannelHandlerContext ctx, int stream, int opcode, ByteBuf body) {
+            write(ctx, stream, opcode, body, null);
+        }
+
+        /**
+         * Write a response, with the trace id in front of the body if the request was traced
+         */
+        private void write(ChannelHandlerContext ctx, int stream, int opcode, ByteBuf body, UUID traceId) {
+            if (traceId != null) {
+                ByteBuf traced = ctx.alloc().buffer(16 + body.readableBytes());
+                traced.writeLong(traceId.getMostSignificantBits());
+                traced.writeLong(traceId.getLeastSignificantBits());
+                traced.writeBytes(body);
+                body.release();
+                body = traced;
+            }
+            boolean compress = lz4 && opcode != READY;
+            if (compress) {
+                ByteBuf compressed = compress(ctx, body);
+                body.release();
+                body = compressed;
+            }
+            ByteBuf frame = ctx.alloc().buffer(9 + body.readableBytes());
+            frame.writeByte(0x80 | PROTOCOL_VERSION);
+            frame.writeByte((compress ? 0x01 : 0) | (traceId == null ? 0 : 0x02));
+            frame.writeShort(stream);
+            frame.writeByte(opcode);
+            frame.writeInt(body.readableBytes());
+            frame.writeBytes(body);
+            body.release();
+            ctx.writeAndFlush(frame);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            ctx.close();
+        }
+    }
+
+    private Result localRow() {
+        InetAddress broadcast = address.getAddress();
+        return rows(
+                new String[] { "key", "bootstrapped", "broadcast_address", "cluster_name", "cql_version", "data_center",
+                        "host_id", "listen_address", "native_protocol_version", "partitioner", "rack", "release_version",
+                        "schema_version", "thrift_version", "tokens" },
+                new DataType[] { DataType.varchar(), DataType.varchar(), DataType.inet(), DataType.varchar(),
+                        DataType.varchar(), DataType.varchar(), DataType.uuid(), DataType.inet(), DataType.varchar(),
+                        DataType.varchar(), DataType.varchar(), DataType.varchar(), DataType.uuid(), DataType.varchar(),
+                        DataType.set(DataType.varchar()) },
+                new Object[] { "local", "COMPLETED", broadcast, CLUSTER_NAME, "3.2.0", DATA_CENTER,
+                        HOST_ID, broadcast, "3", "org.apache.cassandra.dht.Murmur3Partitioner", "rack1", RELEASE_VERSION,
+                        SCHEMA_VERSION, "19.39.0", Collections.singleton("0") });
+    }
+
+    private Result schemaKeyspaces() {
+        Set<String> keyspaces = new LinkedHashSet<String>();
+        for (Table table : tables) {
+            keyspaces.add(table.keyspace);
+        }
+        List<Object[]> rows = new ArrayList<Object[]>();
+        for (String keyspace : keyspaces) {
+            rows.add(new Object[] { keyspace, true, "org.apache.cassandra.locator.SimpleStrategy",
+                    "{\"replication_factor\":\"1\"}" });
+        }
+        return new Result(new String[] { "keyspace_name", "durable_writes", "strategy_class", "strategy_options" },
+                new DataType[] { DataType.varchar(), DataType.cboolean(), DataType.varchar(), DataType.varchar() }, rows);
+    }
+
+    /**
+     * As Cassandra 2.1 describes a table with no clustering columns and no options
+     */
+    private Result schemaTables() {
+        List<Object[]> rows = new ArrayList<Object[]>();
+        for (Table table : tables) {
+            StringBuilder keyValidator = new StringBuilder();
+            for (int i = 0; i < table.partitionKeyColumns; i++) {
+                keyValidator.append(i == 0 ? "" : ",").append(validator(table.types[i]));
+            }
+            rows.add(new Object[] { table.keyspace, table.name, UUID.nameUUIDFromBytes((table.keyspace + "." + table.name).getBytes()),
+                    "org.apache.cassandra.db.marshal.CompositeType(org.apache.cassandra.db.marshal.UTF8Type)",
+                    "org.apache.cassandra.db.marshal.BytesType",
+                    table.partitionKeyColumns == 1 ? keyValidator.toString()
+                            : "org.apache.cassandra.db.marshal.CompositeType(" + keyValidator + ")",
+                    "[]", "[]", null, "Standard",
+                    0.01, "{\"keys\":\"ALL\", \"rows_per_partition\":\"NONE\"}", "",
+                    "org.apache.cassandra.db.compaction.SizeTieredCompactionStrategy", "{}",
+                    "{\"sstable_compression\":\"org.apache.cassandra.io.compress.LZ4Compressor\"}",
+                    0, 864000, null, 0.1, 2048, 128, 0, null, 0.0, null, "99.0PERCENTILE" });
+        }
+        return new Result(
+                new String[] { "keyspace_name", "columnfamily_name", "cf_id", "comparator", "default_validator",
+                        "key_validator", "key_aliases", "column_aliases", "value_alias", "type",
+                        "bloom_filter_fp_chance", "caching", "comment", "compaction_strategy_class",
+                        "compaction_strategy_options", "compression_parameters", "default_time_to_live",
+                        "gc_grace_seconds", "index_interval", "local_read_repair_chance", "max_index_interval",
+                        "min_index_interval", "memtable_flush_period_in_ms", "populate_io_cache_on_flush",
+                        "read_repair_chance", "replicate_on_write", "speculative_retry" },
+                new DataType[] { DataType.varchar(), DataType.varchar(), DataType.uuid(), DataType.varchar(),
+                        DataType.varchar(), DataType.varchar(), DataType.varchar(), DataType.varchar(),
+                        DataType.varchar(), DataType.varchar(), DataType.cdouble(), DataType.varchar(),
+                        DataType.varchar(), DataType.varchar(), DataType.varchar(), DataType.varchar(),
+                        DataType.cint(), DataType.cint(), DataType.cint(), DataType.cdouble(), DataType.cint(),
+                        DataType.cint(), DataType.cint(), DataType.cboolean(), DataType.cdouble(),
+                        DataType.cboolean(), DataType.varchar() },
+                rows);
+    }
+
+    private static UUID sessionId(String normalized) {
+        return UUID.fromString(normalized.substring(normalized.lastIndexOf('=') + 1).trim());
+    }
+
+    /**
+     * @return the session of a trace, as in system_traces.sessions, or no rows for an unknown trace
+     */
+    private Result traceSession(UUID sessionId) {
+        String query = traces.get(sessionId);
+        List<Object[]> rows = new ArrayList<Object[]>();
+        if (query != null) {
+            rows.add(new Object[] { sessionId, address.getAddress(), 100, Collections.singletonMap("query", query),
+                    "Execute CQL3 query", new Date(UUIDs.unixTimestamp(sessionId)) });
+        }
+        return new Result(
+                new String[] { "session_id", "coordinator", "duration", "parameters", "request", "started_at" },
+                new DataType[] { DataType.uuid(), DataType.inet(), DataType.cint(),
+                        DataType.map(DataType.varchar(), DataType.varchar()), DataType.varchar(), DataType.timestamp() },
+                rows);
+    }
+
+    /**
+     * @return the events of a trace, as in system_traces.events
+     */
+    private Result traceEvents(UUID sessionId) {
+        List<Object[]> rows = new ArrayList<Object[]>();
+        String query = traces.get(sessionId);
+        if (query != null) {
+            rows.add(new Object[] { sessionId, UUIDs.timeBased(), "Parsing " + query, address.getAddress(), 10,
+                    "SharedPool-Worker-1" });
+            rows.add(new Object[] { sessionId, UUIDs.timeBased(), "Request complete", address.getAddress(), 100,
+                    "SharedPool-Worker-1" });
+        }
+        return new Result(
+                new String[] { "session_id", "event_id", "activity", "source", "source_elapsed", "thread" },
+                new DataType[] { DataType.uuid(), DataType.timeuuid(), DataType.varchar(), DataType.inet(),
+                        DataType.cint(), DataType.varchar() },
+                rows);
+    }
+
+    private Result schemaColumns() {
+        List<Object[]> rows = new ArrayList<Object[]>();
+        for (Table table : tables) {
+            for (int i = 0; i < table.columns.length; i++) {
+                boolean key = i < table.partitionKeyColumns;
+                rows.add(new Object[] { table.keyspace, table.name, table.columns[i],
+                        key && table.partitionKeyColumns > 1 ? i : null, null, null, null,
+                        key ? "partition_key" : "regular", validator(table.types[i]) });
+            }
+        }
+        return new Result(
+                new String[] { "keyspace_name", "columnfamily_name", "column_name", "component_index", "index_name",
+                        "index_options", "index_type", "type", "validator" },
+                new DataType[] { DataType.varchar(), DataType.varchar(), DataType.varchar(), DataType.cint(),
+                        DataType.varchar(), DataType.varchar(), DataType.varchar(), DataType.varchar(),
+                        DataType.varchar() },
+                rows);
+    }
+
+    /**
+     * @return the name of the server side type of a column
+     */
+    private static String validator(DataType type) {
+        String marshal;
+        switch (type.getName()) {
+            case ASCII: marshal = "AsciiType"; break;
+            case BIGINT: marshal = "LongType"; break;
+            case BLOB: marshal = "BytesType"; break;
+            case BOOLEAN: marshal = "BooleanType"; break;
+            case DECIMAL: marshal = "DecimalType"; break;
+            case DOUBLE: marshal = "DoubleType"; break;
+            case FLOAT: marshal = "FloatType"; break;
+            case INT: marshal = "Int32Type"; break;
+            case TEXT:
+            case VARCHAR: marshal = "UTF8Type"; break;
+            case TIMESTAMP: marshal = "TimestampType"; break;
+            case UUID: marshal = "UUIDType"; break;
+            case VARINT: marshal = "IntegerType"; break;
+            case TIMEUUID: marshal = "TimeUUIDType"; break;
+            case INET: marshal = "InetAddressType"; break;
+            default:
+                throw new IllegalArgumentException("The stub server does not support columns of type " + type);
+        }
+        return "org.apache.cassandra.db.marshal." + marshal;
+    }
+
+    /**
+     * @return the number of bind markers in the query, outside string literals
+     */
+    static int countVariables(String query) {
+        int count = 0;
+        boolean quoted = false;
+        for (int i = 0; i < query.length(); i++) {
+            char c = query.charAt(i);
+            if (c == '\'') {
+                quoted = !quoted;
+            } else if (c == '?' && !quoted) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static void writeMetadata(ByteBuf body, String[] names, DataType[] types) {
+        writeMetadata(body, "stub", "stub", names, types);
+    }
+
+    private static void writeMetadata(ByteBuf body, String keyspace, String table, String[] names, DataType[] types) {
+        writeMetadata(body, keyspace, table, names, types, -1);
+    }
+
+    /**
+     * @param nextPage offset of the next page, or -1 if this is the last
+     */
+    private static void writeMetadata(ByteBuf body, String keyspace, String table, String[] names, DataType[] types,
+                                      int nextPage) {
+        body.writeInt(nextPage < 0 ? 0 : HAS_MORE_PAGES); // No global table spec
+        body.writeInt(names.length);
+        if (nextPage >= 0) {
+            body.writeInt(4);
+            body.writeInt(nextPage);
+        }
+        for (int i = 0; i < names.length; i++) {
+            writeString(body, keyspace);
+            writeString(body, table);
+            writeString(body, names[i]);
+            writeType(body, types[i]);
+        }
+    }
+
+    private static void writeType(ByteBuf body, DataType type) {
+        switch (type.getName()) {
+            case ASCII: body.writeShort(0x0001); break;
+            case BIGINT: body.writeShort(0x0002); break;
+            case BLOB: body.writeShort(0x0003); break;
+            case BOOLEAN: body.writeShort(0x0004); break;
+            case COUNTER: body.writeShort(0x0005); break;
+            case DECIMAL: body.writeShort(0x0006); break;
+            case DOUBLE: body.writeShort(0x0007); break;
+            case FLOAT: body.writeShort(0x0008); break;
+            case INT: body.writeShort(0x0009); break;
+            case TEXT: body.writeShort(0x000A); break;
+            case TIMESTAMP: body.writeShort(0x000B); break;
+            case UUID: body.writeShort(0x000C); break;
+            case VARCHAR: body.writeShort(0x000D); break;
+            case VARINT: body.writeShort(0x000E); break;
+            case TIMEUUID: body.writeShort(0x000F); break;
+            case INET: body.writeShort(0x0010); break;
+            case LIST:
+                body.writeShort(0x0020);
+                writeType(body, type.getTypeArguments().get(0));
+                break;
+            case MAP:
+                body.writeShort(0x0021);
+                writeType(body, type.getTypeArguments().get(0));
+                writeType(body, type.getTypeArguments().get(1));
+                break;
+            case SET:
+                body.writeShort(0x0022);
+                writeType(body, type.getTypeArguments().get(0));
+                break;
+            default:
+                throw new IllegalArgumentException("The stub server does not support " + type);
+        }
+    }
+
+    private static String readLongString(ByteBuf frame) {
+        int length = frame.readInt();
+        String s = frame.toString(frame.readerIndex(), length, CharsetUtil.UTF_8);
+        frame.skipBytes(length);
+        return s;
+    }
+
+    private static String readString(ByteBuf frame) {
+        int length = frame.readUnsignedShort();
+        String s = frame.toString(frame.readerIndex(), length, CharsetUtil.UTF_8);
+        frame.skipBytes(length);
+        return s;
+    }
+
+    private static Map<String, String> readStringMap(ByteBuf frame) {
+        Map<String, String> map = new HashMap<String, String>();
+        int count = frame.readUnsignedShort();
+        for (int i = 0; i < count; i++) {
+            map.put(readString(frame), readString(frame));
+        }
+        return map;
+    }
+
+    /**
+     * Read the query parameters for the page size and paging state, skipping the values
+     */
+    private static Paging readPaging(ByteBuf frame) {
+        frame.readShort(); // Consistency
+        int flags = frame.readByte();
+        if ((flags & 0x01) != 0) {
+            int count = frame.readUnsignedShort();
+            for (int i = 0; i < count; i++) {
+                if ((flags & 0x40) != 0) {
+                    readString(frame);
+                }
+                int length = frame.readInt();
+                frame.skipBytes(Math.max(length, 0));
+            }
+        }
+        int pageSize = (flags & 0x04) != 0 ? frame.readInt() : -1;
+        int offset = 0;
+        if ((flags & 0x08) != 0) {
+            int length = frame.readInt();
+            if (length == 4) {
+                offset = frame.readInt();
+            } else {
+                frame.skipBytes(Math.max(length, 0));
+            }
+        }
+        return new Paging(pageSize, offset);
+    }
+
+    /**
+     * Compress a body as the driver expects: the uncompressed length, then an lz4 block
+     */
+    private static ByteBuf compress(ChannelHandlerContext ctx, ByteBuf body) {
+        byte[] bytes = new byte[body.readableBytes()];
+        body.readBytes(bytes);
+        byte[] compressed = LZ4Factory.fastestInstance().fastCompressor().compress(bytes);
+        ByteBuf out = ctx.alloc().buffer(4 + compressed.length);
+        out.writeInt(bytes.length);
+        out.writeBytes(compressed);
+        return out;
+    }
+
+    private static ByteBuf decompress(ByteBuf body) {
+        byte[] uncompressed = new byte[body.readInt()];
+        byte[] compressed = new byte[body.readableBytes()];
+        body.readBytes(compressed);
+        LZ4Factory.fastestInstance().fastDecompressor().decompress(compressed, 0, uncompressed, 0, uncompressed.length);
+        return Unpooled.wrappedBuffer(uncompressed);
+    }
+
+    private static byte[] readShortBytes(ByteBuf frame) {
+        byte[] bytes = new byte[frame.readUnsignedShort()];
+        frame.readBytes(bytes);
+        return bytes;
+    }
+
+    private static void writeString(ByteBuf body, String s) {
+        byte[] bytes = s.getBytes(CharsetUtil.UTF_8);
+        body.writeShort(bytes.length);
+        body.writeBytes(bytes);
+    }
+
+    private static void writeStringList(ByteBuf body, List<String> list) {
+        body.writeShort(list.size());
+        for (String s : list) {
+            writeString(body, s);
+        }
+    }
+
+    private static void writeShortBytes(ByteBuf body, byte[] bytes) {
+        body.writeShort(bytes.length);
+        body.writeBytes(bytes);
+    }
+
+    private static byte[] md5(String s) {
+        try {
+            return MessageDigest.getInstance("MD5").digest(s.getBytes(CharsetUtil.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Run a stub node on its own, to point a test plan at.  Every query succeeds with no rows.
+     *
+     * @param args the address to listen on, 127.0.0.1 by default
+     */
+    public static void main(String[] args) throws InterruptedException {
+        StubCassandraServer server = new StubCassandraServer(args.length > 0 ? args[0] : "127.0.0.1");
+        server.start();
+        logger.info("Stub Cassandra listening on " + server.address);
+        Thread.currentThread().join(); // Until killed
+    }
+}
@@ -0,0 +1,1026 @@
+package org.apache.cassandra.jmeter;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.DataType;
+import com.datastax.driver.core.HostDistance;
+import com.datastax.driver.core.PoolingOptions;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ProtocolOptions;
+import com.datastax.driver.core.ProtocolVersion;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.SimpleStatement;
+import com.datastax.driver.core.exceptions.ReadTimeoutException;
+import com.datastax.driver.core.policies.DCAwareRoundRobinPolicy;
+import com.datastax.driver.core.policies.LatencyAwarePolicy;
+import com.datastax.driver.core.policies.LoadBalancingPolicy;
+import com.datastax.driver.core.policies.TokenAwarePolicy;
+import org.apache.cassandra.jmeter.config.CassandraBatchCoalescer;
+import org.apache.cassandra.jmeter.config.CassandraConnection;
+import org.apache.cassandra.jmeter.config.CassandraLatencyRecorder;
+import org.apache.cassandra.jmeter.config.CassandraNettyOptions;
+import org.apache.cassandra.jmeter.config.CassandraSessionFactory;
+import org.apache.cassandra.jmeter.config.CoordinatorLatencyTracker;
+import org.apache.cassandra.jmeter.sampler.CassandraMetricsSampler;
+import org.apache.cassandra.jmeter.sampler.CassandraRateSampler;
+import org.apache.cassandra.jmeter.sampler.CassandraSampler;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import org.HdrHistogram.EncodableHistogram;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramLogReader;
+import org.apache.jmeter.samplers.Entry;
+import org.apache.jmeter.samplers.SampleResult;
+import org.apache.jmeter.testbeans.TestBeanHelper;
+import org.apache.jmeter.threads.JMeterContextService;
+import org.apache.jmeter.threads.JMeterVariables;
+import org.apache.jmeter.util.JMeterUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.math.BigDecimal;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Runs the sampler against the in-process stub server, so no cluster is needed.  The stub
+ * listens on port 9042 of 127.0.0.1, which must be free.
+ */
+public class StubServerTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(StubServerTest.class);
+
+    private static final String STUBSESSION = "stubsession";
+    private static final String STUB_IP = "127.0.0.1";
+
+    private StubCassandraServer server;
+    private CassandraConnection cc;
+
+    @BeforeClass
+    public void beforeClass() throws InterruptedException {
+        // As JMeterTest, which needs a cluster
+        if (JMeterUtils.getJMeterProperties() == null) {
+            String file = "src/test/testfiles/jmetertest.properties";
+            JMeterUtils.setJMeterHome(new File(System.getProperty("user.dir")).getParent());
+            new JMeterUtils().initializeProperties(file);
+        }
+        JMeterContextService.getContext().setVariables(new JMeterVariables());
+
+        server = new StubCassandraServer(STUB_IP);
+        // In the schema, so the driver can compute routing keys for it
+        server.addTable("k1", "kv", new String[] { "k", "v" }, new DataType[] { DataType.cint(), DataType.varchar() }, 1);
+        server.start();
+
+        cc = new CassandraConnection();
+        cc.setProperty("contactPoints", STUB_IP);
+        cc.setProperty("keyspace", "k1");
+        cc.setProperty("sessionName", STUBSESSION);
+        cc.testStarted();
+    }
+
+    @AfterClass(alwaysRun = true)
+    public void afterClass() {
+        if (cc != null) {
+            cc.testEnded();
+        }
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    @BeforeMethod
+    public void resetServer() {
+        server.reset();
+    }
+
+    private CassandraSampler newSampler(String queryType, String query, String arguments) {
+        return prepareSampler(new CassandraSampler(), queryType, query, arguments);
+    }
+
+    private <T extends CassandraSampler> T prepareSampler(T cs, String queryType, String query, String arguments) {
+        cs.setProperty("sessionName", STUBSESSION);
+        cs.setProperty("consistencyLevel", AbstractCassandaTestElement.ONE);
+        cs.setProperty("queryType", queryType);
+        cs.setProperty("query", query);
+        cs.setProperty("queryArguments", arguments);
+        TestBeanHelper.prepare(cs);
+        return cs;
+    }
+
+    /**
+     * Connect a session of its own to the stub, with the given properties as name, value pairs
+     */
+    private Session startConnection(String sessionName, String... properties) {
+        CassandraConnection connection = new CassandraConnection();
+        connection.setProperty("contactPoints", STUB_IP);
+        connection.setProperty("keyspace", "k1");
+        connection.setProperty("sessionName", sessionName);
+        for (int i = 0; i < properties.length; i += 2) {
+            connection.setProperty(properties[i], properties[i + 1]);
+        }
+        connection.testStarted();
+        return CassandraConnection.getSession(sessionName);
+    }
+
+    private static void stopConnection(Session session) {
+        CassandraSessionFactory.closeSession(session);
+        session.getCluster().close();
+    }
+
+    @Test
+    public void testSimpleQuery() {
+        server.prime("SELECT k, v FROM t1",
+                StubCassandraServer.rows(new String[] { "k", "v" }, new DataType[] { DataType.cint(), DataType.varchar() },
+                        new Object[] { 1, "one" }, new Object[] { 2, "two" }));
+
+        SampleResult res = newSampler(AbstractCassandaTestElement.SIMPLE, "SELECT k, v FROM t1", "").sample(new Entry());
+        assertTrue(res.isSuccessful(), res.getResponseMessage());
+        assertEquals(new String(res.getResponseData()), "k\tv\n1\tone\n2\ttwo\n");
+        assertEquals(server.getRequestCount(), 1);
+    }
+
+    @Test
+    public void testDiscardResponse() {
+        server.prime("SELECT k, v FROM t1",
+                StubCassandraServer.rows(new String[] { "k", "v" }, new DataType[] { DataType.cint(), DataType.varchar() },
+                        new Object[] { 1, "one" }, new Object[] { 2, "two" }));
+
+        CassandraSampler cs = newSampler(AbstractCassandaTestElement.SIMPLE, "SELECT k, v FROM t1", "");
+        cs.setDiscardResponse(true);
+        cs.setVariableNames("k,v");
+        SampleResult res = cs.sample(new Entry());
+        assertTrue(res.isSuccessful(), res.getResponseMessage());
+        // Two ints and two three letter strings
+        assertEquals(new String(res.getResponseData()), "2 rows, 14 bytes");
+        assertEquals(res.getBytes(), 14);
+        JMeterVariables vars = JMeterContextService.getContext().getVariables();
+        assertEquals(vars.get("k_#"), "2");
+        assertEquals(vars.get("k_1"), "1");
+        assertEquals(vars.get("v_2"), "two");
+    }
+
+    private void primeFiveRows() {
+        server.prime("SELECT k, v FROM t1",
+                StubCassandraServer.rows(new String[] { "k", "v" }, new DataType[] { DataType.cint(), DataType.varchar() },
+                        new Object[] { 1, "one" }, new Object[] { 2, "two" }, new Object[] { 3, "three" },
+                        new Object[] { 4, "four" }, new Object[] { 5, "five" }));
+    }
+
+    @Test
+    public void testFetchSizeAndPagingModes() {
+        primeFiveRows();
+        CassandraSampler cs = newSampler(AbstractCassandaTestElement.SIMPLE, "SELECT k, v FROM t1", "");
+        cs.setName("paged");
+        cs.setFetchSize("2");
+
+        SampleResult res = cs.sample(new Entry());
+        assertTrue(res.isSuccessful(), res.getResponseMessage());
+        assertEquals(new String(res.getResponseData()), "k\tv\n1\tone\n2\ttwo\n3\tthree\n4\tfour\n5\tfive\n");
+        assertEquals(server.getLastPageSize(), 2);
+        assertEquals(server.getRequestCount(), 3);
+        SampleResult[] subs = res.getSubResults();
+        assertEquals(subs.length, 3);
+        assertEquals(subs[2].getSampleLabel(), "paged page 3");
+        assertEquals(new String(subs[2].getResponseData()), "1 rows");
+
+        server.reset();
+        primeFiveRows();
+        cs.setPagingMode(AbstractCassandaTestElement.FIRST_PAGE);
+        res = cs.sample(new Entry());
+        assertEquals(new String(res.getResponseData()), "k\tv\n1\tone\n2\ttwo\n");
+        assertEquals(server.getRequestCount(), 1);
+        assertEquals(res.getSubResults().length, 0);
+
+        server.reset();
+        primeFiveRows();
+        cs.setPagingMode(AbstractCassandaTestElement.ROW_LIMIT);
+        cs.setRowLimit("3");
+        res = cs.sample(new Entry());
+        assertEquals(new String(res.getResponseData()), "k\tv\n1\tone\n2\ttwo\n3\tthree\n");
+        assertEquals(server.getRequestCount(), 2);
+    }
+
+    @Test
+    public void testPrefetch() {
+        primeFiveRows();
+        CassandraSampler cs = newSampler(AbstractCassandaTestElement.SIMPLE, "SELECT k, v FROM t1", "");
+        cs.setFetchSize("2");
+        cs.setPrefetchThreshold("2");
+
+        SampleResult res = cs.sample(new Entry());
+        assertTrue(res.isSuccessful(), res.getResponseMessage());
+        assertEquals(new String(res.getResponseData()), "k\tv\n1\tone\n2\ttwo\n3\tthree\n4\tfour\n5\tfive\n");
+        assertEquals(server.getRequestCount(), 3);
+        // A prefetched page that arrived before it was needed isn't timed
+        assertTrue(res.getSubResults().length <= 3);
+
+        // Reading the third row would prefetch the last page, which the limit never reaches
+        server.reset();
+        primeFiveRows();
+        cs.setPagingMode(AbstractCassandaTestElement.ROW_LIMIT);
+        cs.setRowLimit("4");
+        res = cs.sample(new Entry());
+        assertEquals(new String(res.getResponseData()), "k\tv\n1\tone\n2\ttwo\n3\tthree\n4\tfour\n");
+        assertEquals(server.getRequestCount(), 2);
+    }
+
+    @Test
+    public void testPreparedQuery() {
+        String query = "SELECT v FROM t1 WHERE k = ?";
+        server.primeVariables(query, DataType.cint());
+        server.prime(query, StubCassandraServer.rows(new String[] { "v" }, new DataType[] { DataType.varchar() },
+                new Object[] { "one" }));
+
+        SampleResult res = newSampler(AbstractCassandaTestElement.PREPARED, query, "1").sample(new Entry());
+        assertTrue(res.isSuccessful(), res.getResponseMessage());
+        assertEquals(new String(res.getResponseData()), "v\none\n");
+    }
+
+    @Test
+    public void testArgumentBinders() throws Exception {
+        String query = "INSERT INTO types (i, l, b, t, u, a, x, d, s, m) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+        server.primeVariables(query, DataType.cint(), DataType.bigint(), DataType.cboolean(), DataType.timestamp(),
+                DataType.uuid(), DataType.inet(), DataType.blob(), DataType.decimal(), DataType.set(DataType.cint()),
+                DataType.map(DataType.varchar(), DataType.cint()));
+        PreparedStatement ps = CassandraConnection.getSession(STUBSESSION).prepare(query);
+        ArgumentBinder[] binders = ArgumentBinder.forVariables(ps.getVariables());
+        String[] arguments = { "42", "1234567890123", "true", "2015-06-01 12:00:00+0000",
+                "9f3b3cd1-1c4d-4a36-9a8e-5a3b0f0e4a01", "/10.0.0.1", "0x0aff", "1.50", "{1, 2}", "{'a': 1}" };
+
+        BoundStatement bs = ps.bind();
+        for (int i = 0; i < binders.length; i++) {
+            binders[i].bind(bs, i, arguments[i]);
+        }
+        assertEquals(bs.getInt(0), 42);
+        assertEquals(bs.getLong(1), 1234567890123L);
+        assertTrue(bs.getBool(2));
+        assertEquals(bs.getDate(3).getTime(), 1433160000000L);
+        assertEquals(bs.getUUID(4), UUID.fromString(arguments[4]));
+        assertEquals(bs.getInet(5), InetAddress.getByName("10.0.0.1"));
+        assertEquals(bs.getBytes(6), ByteBuffer.wrap(new byte[] { 0x0a, (byte) 0xff }));
+        assertEquals(bs.getDecimal(7), new BigDecimal("1.50"));
+        assertEquals(bs.getSet(8, Integer.class), new HashSet<Integer>(Arrays.asList(1, 2)));
+        assertEquals(bs.getMap(9, String.class, Integer.class), Collections.singletonMap("a", 1));
+    }
+
+    @Test(expectedExceptions = ParseException.class)
+    public void testBlobArgumentWithoutPrefix() throws Exception {
+        String query = "INSERT INTO types (x) VALUES (?)";
+        server.primeVariables(query, DataType.blob());
+        PreparedStatement ps = CassandraConnection.getSession(STUBSESSION).prepare(query);
+        ArgumentBinder.forVariables(ps.getVariables())[0].bind(ps.bind(), 0, "0aff");
+    }
+
+    /**
+     * However many threads ask for it at once, a query is only prepared once
+     */
+    @Test
+    public void testSingleFlightPreparation() throws InterruptedException {
+        final String query = "SELECT v FROM t1 WHERE k = ? AND single = ?";
+        server.setLatency(StubCassandraServer.fixedLatency(50000));
+        final PreparedStatementCache cache = new PreparedStatementCache(10);
+        final Session session = CassandraConnection.getSession(STUBSESSION);
+        int threads = 8;
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final Set<PreparedQuery> prepared = Collections.synchronizedSet(new HashSet<PreparedQuery>());
+        for (int i = 0; i < threads; i++) {
+            new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                        prepared.add(cache.get(session, query));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        start.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+
+        assertEquals(server.getPrepareCount(), 1);
+        assertEquals(prepared.size(), 1);
+        assertEquals(cache.stats().loadCount(), 1);
+    }
+
+    /**
+     * The size limit applies to each session, so one session's statements don't evict another's
+     */
+    @Test
+    public void testPreparedStatementCacheLimitPerSession() {
+        Session session = CassandraConnection.getSession(STUBSESSION);
+        Session other = startConnection("othercache");
+        try {
+            PreparedStatementCache cache = new PreparedStatementCache(1);
+            String query = "SELECT v FROM t1 WHERE k = ?";
+            PreparedQuery prepared = cache.get(session, query);
+            assertTrue(cache.get(other, query) != prepared);
+            assertTrue(cache.get(session, query) == prepared);
+            assertEquals(cache.stats().evictionCount(), 0);
+
+            cache.get(session, "SELECT v FROM t1 WHERE k = ? AND c = ?");
+            assertEquals(cache.stats().evictionCount(), 1);
+            cache.clear();
+            assertEquals(cache.stats().requestCount(), 0);
+        } finally {
+            stopConnection(other);
+        }
+    }
+
+    /**
+     * The statement is prepared at test start, and the time taken reported once per test
+     */
+    @Test
+    public void testStartupPreparation() {
+        String query = "SELECT v FROM t1 WHERE k = ? AND startup = ?";
+        CassandraSampler cs = newSampler(AbstractCassandaTestElement.PREPARED, query, "1,2");
+        CassandraSampler other = newSampler(AbstractCassandaTestElement.PREPARED, query, "1,2");
+        cs.testStarted();
+        other.testStarted();
+        CassandraSampler thread1 = (CassandraSampler) cs.clone();
+        CassandraSampler thread2 = (CassandraSampler) cs.clone();
+        TestBeanHelper.prepare(thread1);
+        TestBeanHelper.prepare(thread2);
+
+        SampleResult res = thread1.sample(new Entry());
+        assertTrue(res.isSuccessful(), res.getResponseMessage());
+        assertEquals(res.getSubResults().length, 1);
+        assertEquals(res.getSubResults()[0].getSampleLabel(), cs.getName() + " prepare");
+        assertTrue(res.getSubResults()[0].isSuccessful());
+        assertEquals(thread2.sample(new Entry()).getSubResults().length, 0);
+        assertEquals(thread1.sample(new Entry()).getSubResults().length, 0);
+        assertEquals(server.getPrepareCount(), 1);
+
+        // The cache is shared, so it is only cleared when the last element ends
+        cs.testEnded();
+        assertTrue(AbstractCassandaTestElement.getPreparedStatementCacheStats().requestCount() > 0);
+        other.testEnded();
+        assertEquals(AbstractCassandaTestElement.getPreparedStatementCacheStats().requestCount(), 0);
+    }
+
+    @Test
+    public void testDynamicBatch() {
+        CassandraSampler cs = newSampler(AbstractCassandaTestElement.DYNAMIC_BATCH, "INSERT INTO t1 (k, v) VALUES (?, ?)", "1,one");
+        cs.setBatchSize("2");
+
+        assertEquals(cs.sample(new Entry()), null);
+        SampleResult res = cs.sample(new Entry());
+        assertTrue(res.isSuccessful(), res.getResponseMessage());
+        assertEquals(res.getSampleCount(), 2);
+        assertEquals(server.getRequestCount(), 1);
+    }
+
+    private CassandraSampler newGroupedBatch(String grouping) {
+        String query = "INSERT INTO kv (k, v) VALUES (?, ?)";
+        server.primeVariables(query, "k1", "kv", "k", "v");
+        CassandraSampler cs = newSampler(AbstractCassandaTestElement.DYNAMIC_BATCH, query, "");
+        cs.setBatchSize("2");
+        cs.setBatchGrouping(grouping);
+        return cs;
+    }
+
+    private SampleResult sampleKey(CassandraSampler cs, int k) {
+        cs.setQueryArguments(k + ",one");
+        return cs.sample(new Entry());
+    }
+
+    @Test
+    public void testBatchByPartition() {
+        CassandraSampler cs = newGroupedBatch(AbstractCassandaTestElement.BATCH_BY_PARTITION);
+
+        // A batch for each key, applied when it holds two statements
+        assertEquals(sampleKey(cs, 1), null);
+        assertEquals(sampleKey(cs, 2), null);
+        SampleResult res = sampleKey(cs, 1);
+        assertTrue(res.isSuccessful(), res.getResponseMessage());
+        assertEquals(res.getSampleCount(), 2);
+        assertEquals(server.getRequestCount(), 1);
+        res = sampleKey(cs, 2);
+        assertEquals(res.getSampleCount(), 2);
+        assertEquals(server.getRequestCount(), 2);
+    }
+
+    @Test
+    public void testBatchByReplicaSet() {
+        CassandraSampler cs = newGroupedBatch(AbstractCassandaTestElement.BATCH_BY_REPLICAS);
+
+        // Every key is on the only node
+        assertEquals(sampleKey(cs, 1), null);
+        SampleResult res = sampleKey(cs, 2);
+        assertEquals(res.getSampleCount(), 2);
+        assertEquals(server.getRequestCount(), 1);
+    }
+
+    /**
+     * Plans saved before batch grouping have a blank grouping, which must not group
+     */
+    @Test
+    public void testBatchUngroupedByDefault() {
+        CassandraSampler cs = newGroupedBatch("");
+
+        assertEquals(sampleKey(cs, 1), null);
+        SampleResult res = sampleKey(cs, 2);
+        assertEquals(res.getSampleCount(), 2);
+        assertEquals(server.getRequestCount(), 1);
+    }
+
+    @Test
+    public void testBatchBytes() {
+        CassandraSampler cs = newSampler(AbstractCassandaTestElement.DYNAMIC_BATCH, "INSERT INTO t1 (k, v) VALUES (?, ?)", "a,bcd");
+        cs.setBatchSize("10");
+        cs.setBatchBytes("10");
+
+        // 4 bytes, then 8
+        assertEquals(cs.sample(new Entry()), null);
+        assertEquals(cs.sample(new Entry()), null);
+        // 4 more would make 12, so the batch is applied without them
+        SampleResult res = cs.sample(new Entry());
+        assertEquals(res.getSampleCount(), 2);
+        assertEquals(server.getRequestCount(), 1);
+    }
+
+    /**
+     * A statement that doesn't fit in the open batch, but is over the limit on its own, is applied at once too
+     */
+    @Test
+    public void testBatchBytesOverflowingStatement() {
+        CassandraSampler cs = newSampler(AbstractCassandaTestElement.DYNAMIC_BATCH, "INSERT INTO t1 (k, v) VALUES (?, ?)", "a,bcd");
+        cs.setBatchSize("10");
+        cs.setBatchBytes("10");
+
+        assertEquals(cs.sample(new Entry()), null);
+        cs.setQueryArguments("a,bcdefghijk"); // 11 bytes
+        SampleResult res = cs.sample(new Entry());
+        assertTrue(res.isSuccessful(), res.getResponseMessage());
+        assertEquals(res.getSampleCount(), 2);
+        assertEquals(server.getRequestCount(), 2); // Both batches
+        cs.threadFinished();
+        assertEquals(server.getRequestCount(), 2); // Nothing left to apply
+    }
+
+    /**
+     * The statements of concurrent samples are applied in one batch, and each sample completes with it
+     */
+    @Test
+    public void testBatchCoalescer() throws InterruptedException {
+        CassandraBatchCoalescer coalescer = new CassandraBatchCoalescer();
+        coalescer.setProperty("coalescerName", "coalescer"); // $NON-NLS-1$
+        coalescer.setProperty("batchSize", "2"); // $NON-NLS-1$
+        coalescer.setProperty("batchLinger", "5000"); // $NON-NLS-1$
+        coalescer.testStarted();
+        try {
+            final Session session = CassandraConnection.getSession(STUBSESSION);
+            final List<SampleResult> results = Collections.synchronizedList(new ArrayList<SampleResult>());
+            Thread[] threads = new Thread[2];
+            for (int i = 0; i < threads.length; i++) {
+                final CassandraSampler cs = newSampler(AbstractCassandaTestElement.COALESCED,
+                        "INSERT INTO t1 (k, v) VALUES (?, ?)", i + ",one");
+                cs.setBatchCoalescer("coalescer");
+                threads[i] = new Thread() {
+                    public void run() {
+                        JMeterVariables variables = new JMeterVariables();
+                        variables.putObject(STUBSESSION, session);
+                        JMeterContextService.getContext().setVariables(variables);
+                        results.add(cs.sample(new Entry()));
+                    }
+                };
+                threads[i].start();
+            }
+            for (Thread thread : threads) {
+                thread.join(5000);
+            }
+
+            assertEquals(results.size(), 2);
+            for (SampleResult res : results) {
+                assertTrue(res.isSuccessful(), res.getResponseMessage());
+                assertTrue(res.getTime() < 5000, "Waited for the linger");
+            }
+            assertEquals(server.getRequestCount(), 1);
+        } finally {
+            coalescer.testEnded();
+        }
+    }
+
+    /**
+     * A partly filled batch is applied once it has lingered, even if the thread doesn't sample again
+     */
+    @Test
+    public void testBatchLinger() throws InterruptedException {
+        CassandraSampler cs = newSampler(AbstractCassandaTestElement.DYNAMIC_BATCH, "INSERT INTO t1 (k, v) VALUES (?, ?)", "1,one");
+        cs.setBatchSize("10");
+        cs.setBatchLinger("50");
+
+        assertEquals(cs.sample(new Entry()), null);
+        assertEquals(cs.sample(new Entry()), null);
+        assertEquals(server.getRequestCount(), 0);
+        long deadline = System.currentTimeMillis() + 1000;
+        while (server.getRequestCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(server.getRequestCount(), 1);
+        cs.threadFinished();
+        assertEquals(server.getRequestCount(), 1); // Nothing left to apply
+        assertEquals(((AbstractCassandaTestElement) cs).getUnreportedStatements(), 2);
+    }
+
+    /**
+     * Partly filled batches are applied when the thread finishes, so no statements are lost
+     */
+    @Test
+    public void testBatchAppliedAtThreadEnd() {
+        CassandraSampler cs = newGroupedBatch(AbstractCassandaTestElement.BATCH_BY_PARTITION);
+        cs.setBatchSize("10");
+
+        assertEquals(sampleKey(cs, 1), null);
+        assertEquals(sampleKey(cs, 2), null);
+        assertEquals(sampleKey(cs, 1), null);
+        assertEquals(server.getRequestCount(), 0);
+        cs.threadFinished();
+        assertEquals(server.getRequestCount(), 2); // One batch for each key
+        assertEquals(((AbstractCassandaTestElement) cs).getUnreportedStatements(), 3);
+    }
+
+    @Test
+    public void testInjectedError() {
+        server.primeError("SELECT * FROM t1", StubCassandraServer.Error.INVALID);
+
+        SampleResult res = newSampler(AbstractCassandaTestElement.SIMPLE, "SELECT * FROM t1", "").sample(new Entry());
+        assertFalse(res.isSuccessful());
+        assertEquals(server.getErrorCount(), 1);
+    }
+
+    @Test
+    public void testLatency() {
+        server.setLatency(StubCassandraServer.fixedLatency(50000));
+
+        SampleResult res = newSampler(AbstractCassandaTestElement.SIMPLE, "SELECT * FROM t1", "").sample(new Entry());
+        assertTrue(res.isSuccessful(), res.getResponseMessage());
+        assertTrue(res.getTime() >= 50, "Took " + res.getTime() + "ms");
+    }
+
+    @Test
+    public void testAsyncWindow() throws InterruptedException {
+        server.setLatency(StubCassandraServer.fixedLatency(20000));
+        CassandraSampler cs = newSampler(AbstractCassandaTestElement.ASYNC, "INSERT INTO t1 (k, v) VALUES (?, ?)", "1,one");
+        cs.setAsyncWindow("3");
+
+        assertEquals(cs.sample(new Entry()), null);
+        assertEquals(cs.sample(new Entry()), null);
+        Thread.sleep(100); // Let both complete, so the next sample reports all three
+        SampleResult res = cs.sample(new Entry());
+        assertTrue(res.isSuccessful(), res.getResponseMessage());
+        SampleResult[] subs = res.getSubResults();
+        assertTrue(subs.length >= 2, subs.length + " requests completed");
+        assertEquals(res.getSampleCount(), subs.length);
+        // The time is that of the requests, not of waiting for the window
+        long total = 0;
+        for (SampleResult sub : subs) {
+            assertTrue(sub.getTime() >= 20, "Took " + sub.getTime() + "ms");
+            total += sub.getTime();
+        }
+        assertEquals(res.getTime(), total);
+        cs.threadFinished();
+    }
+
+    private CassandraRateSampler newRateSampler(String targetRate, String arrivals) {
+        CassandraRateSampler rs = new CassandraRateSampler();
+        rs.setProperty("targetRate", targetRate);
+        rs.setProperty("arrivals", arrivals);
+        rs.setProperty("asyncWindow", "1");
+        return prepareSampler(rs, AbstractCassandaTestElement.PREPARED, "INSERT INTO t1 (k, v) VALUES (?, ?)", "1,one");
+    }
+
+    /**
+     * @return the start of the one request the sample reports, which is its intended start
+     */
+    private static long intendedStart(SampleResult res) {
+        assertTrue(res.isSuccessful(), res.getResponseMessage());
+        assertEquals(res.getSampleCount(), 1);
+        // The first sample also reports the preparation at test start, after the request
+        return res.getSubResults()[0].getStartTime();
+    }
+
+    /**
+     * The clones made for each thread share one schedule, so the rate doesn't depend on the threads
+     */
+    @Test
+    public void testRateSamplerSharedConstantSchedule() {
+        CassandraRateSampler rs = newRateSampler("20", "Constant");
+        rs.testStarted();
+        try {
+            CassandraRateSampler thread1 = (CassandraRateSampler) rs.clone();
+            CassandraRateSampler thread2 = (CassandraRateSampler) rs.clone();
+            TestBeanHelper.prepare(thread1);
+            TestBeanHelper.prepare(thread2);
+
+            long previous = intendedStart(thread1.sample(new Entry()));
+            for (int i = 0; i < 4; i++) {
+                long start = intendedStart((i % 2 == 0 ? thread2 : thread1).sample(new Entry()));
+                assertEquals(start - previous, 50);
+                previous = start;
+            }
+        } finally {
+            rs.testEnded();
+        }
+    }
+
+    @Test
+    public void testRateSamplerPoissonSchedule() {
+        CassandraRateSampler rs = newRateSampler("1000", "Poisson");
+        rs.testStarted();
+        try {
+            int samples = 200;
+            long first = intendedStart(rs.sample(new Entry()));
+            long previous = first;
+            Set<Long> gaps = new HashSet<Long>();
+            for (int i = 1; i < samples; i++) {
+                long start = intendedStart(rs.sample(new Entry()));
+                gaps.add(start - previous);
+                previous = start;
+            }
+            assertTrue(gaps.size() > 2, "Gaps " + gaps);
+            // 1ms apart on average, with a standard deviation of about 14ms over the whole run
+            long span = previous - first;
+            assertTrue(span > 100 && span < 350, "Took " + span + "ms");
+        } finally {
+            rs.testEnded();
+        }
+    }
+
+    /**
+     * A thread that can't keep up with the rate falls behind the schedule, and the time it spends
+     * behind counts in the latency - the coordinated omission correction
+     */
+    @Test
+    public void testRateSamplerLatencyFromIntendedStart() {
+        server.setLatency(StubCassandraServer.fixedLatency(50000));
+        // Every 25ms, but one thread with one request in flight can only start one every 50ms
+        CassandraRateSampler rs = newRateSampler("40", "Constant");
+        rs.testStarted();
+        try {
+            long previous = 0;
+            for (int i = 0; i < 6; i++) {
+                SampleResult res = rs.sample(new Entry());
+                intendedStart(res);
+                // 50ms to answer, plus 25ms more behind for each earlier request
+                assertTrue(res.getTime() >= 50 + 25 * i, "Request " + i + " took " + res.getTime() + "ms");
+                assertTrue(res.getTime() > previous, "Request " + i + " took " + res.getTime() + "ms");
+                previous = res.getTime();
+            }
+        } finally {
+            rs.testEnded();
+        }
+    }
+
+    /**
+     * Each interval is written to the log as it ends, and the last one when the recorder is closed
+     */
+    @Test
+    public void testLatencyRecorderLog() throws IOException, InterruptedException {
+        File directory = File.createTempFile("latency", "");
+        assertTrue(directory.delete() && directory.mkdir());
+        server.setLatency(StubCassandraServer.fixedLatency(5000));
+        CassandraLatencyRecorder recorder = new CassandraLatencyRecorder();
+        recorder.setProperty("logDirectory", directory.getPath());
+        recorder.setProperty("logInterval", "100");
+        recorder.setProperty("significantDigits", "3");
+        recorder.testStarted();
+        File log = new File(directory, "recorded.hlog");
+        try {
+            CassandraSampler cs = newSampler(AbstractCassandaTestElement.PREPARED, "INSERT INTO t1 (k, v) VALUES (?, ?)", "1,one");
+            cs.setName("recorded");
+            for (int i = 0; i < 5; i++) {
+                assertTrue(cs.sample(new Entry()).isSuccessful());
+            }
+            Thread.sleep(350);
+            for (int i = 0; i < 5; i++) {
+                assertTrue(cs.sample(new Entry()).isSuccessful());
+            }
+            recorder.testEnded();
+
+            HistogramLogReader reader = new HistogramLogReader(log);
+            Histogram total = new Histogram(3);
+            int intervals = 0;
+            int recorded = 0;
+            EncodableHistogram interval;
+            while ((interval = reader.nextIntervalHistogram()) != null) {
+                intervals++;
+                if (((Histogram) interval).getTotalCount() > 0) {
+                    recorded++;
+                }
+                total.add((Histogram) interval);
+            }
+            // At least three intervals of 100ms while sleeping, and the samples before and after in different ones
+            assertTrue(intervals >= 4, intervals + " intervals");
+            assertTrue(recorded >= 2, recorded + " intervals with latencies");
+            assertEquals(total.getTotalCount(), 10);
+            assertTrue(total.getMinValue() >= 5000, "Fastest " + total.getMinValue() + "us");
+        } finally {
+            LatencyRecorder.unregister();
+            log.delete();
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void testTraceFetchedInBackground() throws InterruptedException {
+        server.setTraceLatency(StubCassandraServer.fixedLatency(200000));
+        CassandraSampler cs = newSampler(AbstractCassandaTestElement.SIMPLE, "SELECT k, v FROM t1", "");
+        cs.setName("traced");
+        cs.setTraceEvery("1");
+
+        long start = System.currentTimeMillis();
+        SampleResult res = cs.sample(new Entry());
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue(res.isSuccessful(), res.getResponseMessage());
+        // Reading the trace takes two queries on system_traces, each answered after 200ms
+        assertTrue(elapsed < 200, "Waited " + elapsed + "ms for the trace");
+        assertEquals(res.getSubResults().length, 0);
+
+        cs.setTraceEvery("");
+        Thread.sleep(1000);
+        res = cs.sample(new Entry());
+        SampleResult[] subs = res.getSubResults();
+        assertEquals(subs.length, 1);
+        assertTrue(subs[0].getSampleLabel().startsWith("traced trace "), subs[0].getSampleLabel());
+        assertTrue(subs[0].isSuccessful(), subs[0].getResponseMessage());
+        assertEquals(subs[0].getSubResults().length, 2);
+        cs.threadFinished();
+    }
+
+    @Test
+    public void testRoutingKeyFromPartitionKeyQuery() throws IOException {
+        server.primeVariables("SELECT * FROM \"k1\".\"kv\" WHERE \"k\" = ?", "k1", "kv", "k");
+        CassandraSampler cs = newSampler(AbstractCassandaTestElement.SIMPLE, "SELECT k, v FROM kv WHERE k = 7", "7");
+        cs.setRoutingKeyTable("kv");
+        Session session = CassandraConnection.getSession(STUBSESSION);
+
+        AbstractCassandaTestElement element = cs;
+        SimpleStatement stmt = element.newSimpleStatement(session);
+        assertEquals(stmt.getRoutingKey(), DataType.cint().serialize(7, ProtocolVersion.V3));
+        assertEquals(stmt.getKeyspace(), "k1");
+        assertEquals(stmt.getQueryString(), "SELECT k, v FROM kv WHERE k = 7");
+        element.newSimpleStatement(session);
+        assertEquals(server.getPrepareCount(), 1);
+
+        assertTrue(cs.sample(new Entry()).isSuccessful());
+        assertEquals(server.getPrepareCount(), 1);
+        assertEquals(server.getRequestCount(), 1);
+    }
+
+    /**
+     * Read a setting the driver keeps no getter for
+     */
+    private static Object getField(Class<?> type, Object object, String name) throws ReflectiveOperationException {
+        Field field = type.getDeclaredField(name);
+        field.setAccessible(true);
+        return field.get(object);
+    }
+
+    private static boolean shufflesReplicas(Session session) throws ReflectiveOperationException {
+        LoadBalancingPolicy policy = session.getCluster().getConfiguration().getPolicies().getLoadBalancingPolicy();
+        assertTrue(policy instanceof TokenAwarePolicy, policy.getClass().getName());
+        return (Boolean) getField(TokenAwarePolicy.class, policy, "shuffleReplicas");
+    }
+
+    @Test
+    public void testPreferReplicaOrder() throws ReflectiveOperationException {
+        Session shuffled = startConnection("shuffled", "tokenAware", "true");
+        Session ordered = startConnection("ordered", "preferReplicaOrder", "true");
+        try {
+            assertTrue(shufflesReplicas(shuffled));
+            assertFalse(shufflesReplicas(ordered));
+            assertTrue(((TokenAwarePolicy) ordered.getCluster().getConfiguration().getPolicies().getLoadBalancingPolicy())
+                    .getChildPolicy() instanceof DCAwareRoundRobinPolicy);
+            ordered.execute("SELECT k, v FROM t1");
+        } finally {
+            stopConnection(shuffled);
+            stopConnection(ordered);
+        }
+    }
+
+    @Test
+    public void testLatencyAwareOptions() throws ReflectiveOperationException, InterruptedException {
+        Session session = startConnection("latencyaware", "latencyAware", "true", "exclusionThreshold", "3.5",
+                "latencyScale", "50", "retryPeriod", "2000", "minimumMeasurements", "5");
+        try {
+            // Token awareness goes around latency awareness
+            TokenAwarePolicy token = (TokenAwarePolicy) session.getCluster().getConfiguration().getPolicies()
+                    .getLoadBalancingPolicy();
+            LatencyAwarePolicy policy = (LatencyAwarePolicy) token.getChildPolicy();
+            assertEquals(getField(LatencyAwarePolicy.class, policy, "exclusionThreshold"), 3.5);
+            assertEquals(getField(LatencyAwarePolicy.class, policy, "scale"), TimeUnit.MILLISECONDS.toNanos(50));
+            assertEquals(getField(LatencyAwarePolicy.class, policy, "retryPeriod"), TimeUnit.MILLISECONDS.toNanos(2000));
+            assertEquals(getField(LatencyAwarePolicy.class, policy, "minMeasure"), 5L);
+
+            for (int i = 0; i < 10; i++) {
+                session.execute("SELECT k, v FROM t1");
+            }
+            // Scores are updated in the background
+            LatencyAwarePolicy.Snapshot.Stats stats = null;
+            for (int i = 0; i < 100 && stats == null; i++) {
+                Thread.sleep(10);
+                stats = policy.getScoresSnapshot().getAllStats().isEmpty() ? null
+                        : policy.getScoresSnapshot().getAllStats().values().iterator().next();
+            }
+            assertTrue(stats != null && stats.getMeasurementsCount() >= 5);
+        } finally {
+            stopConnection(session);
+        }
+    }
+
+    @Test
+    public void testMetricsSampler() {
+        server.primeError("SELECT * FROM t2", StubCassandraServer.Error.READ_TIMEOUT);
+        Session session = startConnection("metrics");
+        try {
+            CassandraMetricsSampler ms = new CassandraMetricsSampler();
+            ms.setName("metrics");
+            ms.setSessionName("metrics");
+            assertTrue(ms.sample(new Entry()).isSuccessful());
+            JMeterVariables vars = JMeterContextService.getContext().getVariables();
+            // Connecting counts too
+            long before = Long.parseLong(vars.get("metrics_requests"));
+
+            session.execute("SELECT k, v FROM t1");
+            session.execute("SELECT k, v FROM t1");
+            try {
+                session.execute("SELECT * FROM t2");
+            } catch (ReadTimeoutException e) {
+                // Counted by the driver
+            }
+
+            SampleResult res = ms.sample(new Entry());
+            assertTrue(res.isSuccessful(), res.getResponseMessage());
+            assertTrue(new String(res.getResponseData()).startsWith("metrics:\n"), new String(res.getResponseData()));
+            assertEquals(vars.get("metrics_knownHosts"), "1");
+            assertEquals(vars.get("metrics_connectedToHosts"), "1");
+            assertEquals(Long.parseLong(vars.get("metrics_requests")), before + 3);
+            assertEquals(vars.get("metrics_readTimeouts"), "1");
+
+            ms.setSessionName("nosuchsession");
+            res = ms.sample(new Entry());
+            assertFalse(res.isSuccessful());
+            assertEquals(res.getResponseMessage(), "No Cassandra session named nosuchsession");
+        } finally {
+            stopConnection(session);
+        }
+    }
+
+    @Test
+    public void testCoordinatorLatency() throws InterruptedException {
+        server.primeError("SELECT * FROM t2", StubCassandraServer.Error.INVALID);
+        // A session of its own, so no other test's requests are counted
+        Session session = startConnection("coordinator");
+        CoordinatorLatencyTracker tracker = new CoordinatorLatencyTracker();
+        session.getCluster().register(tracker);
+        try {
+            CassandraSampler cs = newSampler(AbstractCassandaTestElement.SIMPLE, "SELECT k, v FROM t1", "");
+            cs.setSessionName("coordinator");
+            SampleResult res = cs.sample(new Entry());
+            assertTrue(res.isSuccessful(), res.getResponseMessage());
+            assertTrue(res.getResponseHeaders().contains("\nCoordinator: " + STUB_IP + "\nTried hosts: 1"),
+                    res.getResponseHeaders());
+
+            cs = newSampler(AbstractCassandaTestElement.SIMPLE, "SELECT * FROM t2", "");
+            cs.setSessionName("coordinator");
+            res = cs.sample(new Entry());
+            assertFalse(res.isSuccessful());
+            // The driver reports the latency after completing the request
+            String expected = STUB_IP + " requests=2 errors=1 ";
+            for (int i = 0; i < 100 && !tracker.summary().startsWith(expected); i++) {
+                Thread.sleep(10);
+            }
+            assertTrue(tracker.summary().startsWith(expected), tracker.summary());
+        } finally {
+            stopConnection(session);
+        }
+    }
+
+    @Test
+    public void testLz4Compression() {
+        server.prime("SELECT k, v FROM t1",
+                StubCassandraServer.rows(new String[] { "k", "v" }, new DataType[] { DataType.cint(), DataType.varchar() },
+                        new Object[] { 1, "one" }, new Object[] { 2, "two" }));
+        Session session = startConnection("lz4", "compression", CassandraConnection.LZ4);
+        try {
+            assertEquals(session.getCluster().getConfiguration().getProtocolOptions().getCompression(),
+                    ProtocolOptions.Compression.LZ4);
+            // Once lz4 is agreed, the stub compresses every response, so the rows only read back if
+            // the driver decompresses them
+            List<Row> rows = session.execute("SELECT k, v FROM t1").all();
+            assertEquals(rows.size(), 2);
+            assertEquals(rows.get(1).getString("v"), "two");
+            assertTrue(server.getCompressedRequestCount() > 0);
+        } finally {
+            stopConnection(session);
+        }
+    }
+
+    private static CassandraNettyOptions nettyOptions(Session session) {
+        return (CassandraNettyOptions) session.getCluster().getConfiguration().getNettyOptions();
+    }
+
+    /**
+     * Some JVMs have the native library, but Netty can't allocate memory for it there
+     */
+    private static boolean epollUsable() {
+        try {
+            new EpollEventLoopGroup(1).shutdownGracefully();
+            return Epoll.isAvailable();
+        } catch (Throwable t) {
+            return false;
+        }
+    }
+
+    @Test
+    public void testTransport() {
+        Session nio = startConnection("nio", "transport", CassandraConnection.NIO, "eventLoopThreads", "1");
+        Session epoll = startConnection("epoll", "transport", CassandraConnection.EPOLL);
+        try {
+            assertEquals(nettyOptions(nio).channelClass(), NioSocketChannel.class);
+            // Falls back to NIO, with a warning, where epoll can't be used
+            assertEquals(nettyOptions(epoll).channelClass(), epollUsable() ? EpollSocketChannel.class : NioSocketChannel.class);
+
+            for (Session session : Arrays.asList(nio, epoll)) {
+                long sent = nettyOptions(session).getWireBytesSent();
+                session.execute("SELECT k, v FROM t1");
+                assertTrue(nettyOptions(session).getWireBytesSent() > sent);
+            }
+        } finally {
+            stopConnection(nio);
+            stopConnection(epoll);
+        }
+    }
+
+    @Test
+    public void testPoolCoreOnly() {
+        Session session = startConnection("corepool", "coreConnectionsLocal", "4");
+        try {
+            PoolingOptions pooling = session.getCluster().getConfiguration().getPoolingOptions();
+            assertEquals(pooling.getCoreConnectionsPerHost(HostDistance.LOCAL), 4);
+            assertEquals(pooling.getMaxConnectionsPerHost(HostDistance.LOCAL), 4);
+            session.execute("SELECT k, v FROM t1");
+        } finally {
+            stopConnection(session);
+        }
+    }
+
+    @Test
+    public void testPoolMaxOnly() {
+        Session session = startConnection("maxpool", "maxConnectionsLocal", "4");
+        try {
+            PoolingOptions pooling = session.getCluster().getConfiguration().getPoolingOptions();
+            assertEquals(pooling.getCoreConnectionsPerHost(HostDistance.LOCAL), 1);
+            assertEquals(pooling.getMaxConnectionsPerHost(HostDistance.LOCAL), 4);
+            session.execute("SELECT k, v FROM t1");
+        } finally {
+            stopConnection(session);
+        }
+    }
+
+    /**
+     * Measures the overhead of the sampler and driver, as the stub answers at once
+     */
+    @Test
+    public void testClientOverhead() {
+        CassandraSampler cs = newSampler(AbstractCassandaTestElement.PREPARED, "INSERT INTO t1 (k, v) VALUES (?, ?)", "1,one");
+        int samples = 20000;
+        for (int i = 0; i < samples / 10; i++) {
+            cs.sample(new Entry()); // Warm up
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < samples; i++) {
+            assertTrue(cs.sample(new Entry()).isSuccessful());
+        }
+        long elapsed = System.nanoTime() - start;
+        logger.info("Prepared insert: " + samples + " samples, " + (elapsed / samples / 1000) + "us each, "
+                + (samples * 1000000000L / elapsed) + " samples/s on one thread");
+    }
+}
@@ -0,0 +1,65 @@
+package org.apache.cassandra.jmeter;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Random;
+
+import static org.testng.Assert.assertEquals;
+
+/**
+ * Checks TimestampCodec against SimpleDateFormat, which it replaces.  No cluster is needed.
+ */
+public class TimestampCodecTest {
+
+    @DataProvider(name = "provideTimestamps")
+    public Object[][] provideTimestamps() {
+        return new Object[][] {
+                { "1997-08-28 23:14:00-0700", 872835240000L },
+                { "1970-01-01 00:00:00+0000", 0L },
+                { "1969-12-31 23:59:59+0000", -1000L },
+                { "2000-02-29 12:30:45+0530", 951807645000L },
+                { "872835240000", 872835240000L },
+                { "-1000", -1000L }
+        };
+    }
+
+    @Test(dataProvider = "provideTimestamps")
+    public void testParse(String timestamp, long expected) throws ParseException {
+        assertEquals(TimestampCodec.parse(timestamp), expected);
+    }
+
+    @Test
+    public void testLocalFormats() throws ParseException {
+        String[] patterns = { AbstractCassandaTestElement.CASSANDRA_DATE_FORMAT_STRING2,
+                AbstractCassandaTestElement.CASSANDRA_DATE_FORMAT_STRING3 };
+        String[] values = { "2014-03-09 02:30:00", "2014-11-02 01:30:00", "2015-06-15 08:00:01", "1999-12-31",
+                "2016-02-29" };
+        for (String value : values) {
+            String pattern = value.length() == patterns[0].length() ? patterns[0] : patterns[1];
+            assertEquals(TimestampCodec.parse(value), new SimpleDateFormat(pattern).parse(value).getTime(), value);
+        }
+    }
+
+    @Test
+    public void testFormatMatchesSimpleDateFormat() throws ParseException {
+        SimpleDateFormat sdf = new SimpleDateFormat(AbstractCassandaTestElement.CASSANDRA_DATE_FORMAT_STRING1);
+        Random random = new Random(42);
+        for (int i = 0; i < 10000; i++) {
+            // Whole seconds between 1970 and 2100 - the timestamp format has no milliseconds, and
+            // older local mean time offsets are not whole minutes
+            long millis = ((random.nextLong() >>> 1) % 4102444800L) * 1000L;
+            String formatted = TimestampCodec.format(millis);
+            assertEquals(formatted, sdf.format(new Date(millis)));
+            assertEquals(TimestampCodec.parse(formatted), millis);
+        }
+    }
+
+    @Test(expectedExceptions = ParseException.class)
+    public void testInvalid() throws ParseException {
+        TimestampCodec.parse("1997/08/28");
+    }
+}